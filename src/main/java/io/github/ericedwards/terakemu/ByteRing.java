@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * ByteRing.java - Bounded byte queue between two threads.
+ *
+ * One thread puts bytes in and one takes them out, neither taking a
+ * lock: each end only writes its own counter, and reads the other's to
+ * see how much room or data there is.  If more than one thread can put
+ * (or take) they have to agree among themselves who goes, e.g. by
+ * synchronizing on the ring.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ByteRing {
+
+    private final byte[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();  // next to take
+    private final AtomicLong tail = new AtomicLong();  // next to put
+
+    // The capacity is rounded up to a power of two.
+    public ByteRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int remaining() {
+        return ring.length - size();
+    }
+
+    // offer() - Put a byte in, false if the ring is full.
+    public boolean offer(int b) {
+        long t = tail.get();
+        if ((t - head.get()) == ring.length) {
+            return false;
+        }
+        ring[(int) t & mask] = (byte) b;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // offer() - Put in as many of the bytes as fit, returns how many.
+    public int offer(byte[] b, int offset, int length) {
+        long t = tail.get();
+        int n = Math.min(length, ring.length - (int) (t - head.get()));
+        for (int i = 0; i < n; ++i) {
+            ring[(int) (t + i) & mask] = b[offset + i];
+        }
+        tail.lazySet(t + n);
+        return n;
+    }
+
+    // poll() - Take a byte out, -1 if the ring is empty.
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        int b = ring[(int) h & mask] & 0377;
+        head.lazySet(h + 1);
+        return b;
+    }
+
+    // poll() - Take out up to length bytes, returns how many.
+    public int poll(byte[] b, int offset, int length) {
+        long h = head.get();
+        int n = Math.min(length, (int) (tail.get() - h));
+        for (int i = 0; i < n; ++i) {
+            b[offset + i] = ring[(int) (h + i) & mask];
+        }
+        head.lazySet(h + n);
+        return n;
+    }
+
+    // clear() - Drop everything.  Only the taking thread may do this.
+    public void clear() {
+        head.lazySet(tail.get());
+    }
+
+}
@@ -84,6 +84,7 @@ public class CPUDevice extends Thread implements QbusDevice {
     private Qbus unibus;
     private KTDevice mmu;
     private KWDevice kw;
+    KTDevice.AccessPath path;       // current mode references, set by mmu
 
     private boolean runRequest;
     private boolean runStatus;
@@ -141,6 +142,9 @@ public class CPUDevice extends Thread implements QbusDevice {
         int newmode = (psw & 0140000) >>> 14;
         stacks[oldmode] = regs[SP];
         regs[SP] = stacks[newmode];
+        if (mmu != null) {
+            mmu.selectPath();
+        }
     }
 
     public void writebyte(int addr, byte data) throws Trap {
@@ -238,11 +242,12 @@ public class CPUDevice extends Thread implements QbusDevice {
         int look = 0;	 // make class member ?
         int rtt = 0;
         mmu = KTDevice.instance();
+        mmu.selectPath();
         do {
             stackCheck = false;
             mmu.mmr2update(regs[PC]);
             try {
-                ir = ((int) mmu.logicalRead(regs[PC])) & 0177777;
+                ir = ((int) path.fetch(regs[PC])) & 0177777;
                 regs[PC] += 2;
                 decodeAndExecute();
             } catch (Trap trap) {
@@ -363,10 +368,36 @@ public class CPUDevice extends Thread implements QbusDevice {
         regs[SP] = stacks[newmode];
         psw = psw & 0147777;
         psw |= (oldmode << 12);
+        mmu.selectPath();
         push((short) oldpsw);
         push(oldpc);
     }
 
+    // stepRegister() - Auto-increment or decrement a register for an
+    // addressing mode, recording it in MMR1.  The PC is not recorded.
+    private final void stepRegister(int reg, int amount) {
+        regs[reg] += amount;
+        if (reg != PC) {
+            mmu.mmr1record(reg, amount);
+        }
+    }
+
+    // readThrough() - Modes 2 and 3 read through the register.  Through
+    // the PC these are immediate and absolute operands, kept in I space.
+    private final short readThrough(int reg) throws Trap {
+        if (reg == PC) {
+            return path.fetch(regs[PC]);
+        }
+        return path.read(regs[reg]);
+    }
+
+    private final byte readByteThrough(int reg) throws Trap {
+        if (reg == PC) {
+            return (byte) path.fetch(regs[PC]);
+        }
+        return path.readByte(regs[reg]);
+    }
+
     private final short loadSource() throws Trap {
         int sourceMode = (ir & 07000) >> 9;
         int sourceReg = (ir & 0700) >> 6;
@@ -375,39 +406,39 @@ public class CPUDevice extends Thread implements QbusDevice {
             case 0:
                 return regs[sourceReg];
             case 1:
-                return mmu.logicalRead(regs[sourceReg]);
+                return path.read(regs[sourceReg]);
             case 2:
-                temp1 = mmu.logicalRead(regs[sourceReg]);
-                regs[sourceReg] += 2;
+                temp1 = readThrough(sourceReg);
+                stepRegister(sourceReg, 2);
                 return temp1;
             case 3:
-                temp1 = mmu.logicalRead(regs[sourceReg]);
-                regs[sourceReg] += 2;
-                return mmu.logicalRead(temp1);
+                temp1 = readThrough(sourceReg);
+                stepRegister(sourceReg, 2);
+                return path.read(temp1);
             case 4:
-                regs[sourceReg] -= 2;
+                stepRegister(sourceReg, -2);
                 if ((sourceReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                return mmu.logicalRead(regs[sourceReg]);
+                return path.read(regs[sourceReg]);
             case 5:
-                regs[sourceReg] -= 2;
+                stepRegister(sourceReg, -2);
                 if ((sourceReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[sourceReg]);
-                return mmu.logicalRead(temp1);
+                temp1 = path.read(regs[sourceReg]);
+                return path.read(temp1);
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[sourceReg] + temp1);
-                return mmu.logicalRead(temp1);
+                return path.read(temp1);
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[sourceReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
-                return mmu.logicalRead(temp1);
+                temp1 = path.read(temp1);
+                return path.read(temp1);
         }
         throw new Trap(Trap.Unimplemented);
     }
@@ -421,44 +452,44 @@ public class CPUDevice extends Thread implements QbusDevice {
                 regs[destReg] = data;
                 break;
             case 1:
-                mmu.logicalWrite(regs[destReg], data);
+                path.write(regs[destReg], data);
                 break;
             case 2:
-                mmu.logicalWrite(regs[destReg], data);
-                regs[destReg] += 2;
+                path.write(regs[destReg], data);
+                stepRegister(destReg, 2);
                 break;
             case 3:
-                temp1 = mmu.logicalRead(regs[destReg]);
-                regs[destReg] += 2;
-                mmu.logicalWrite(temp1, data);
+                temp1 = readThrough(destReg);
+                stepRegister(destReg, 2);
+                path.write(temp1, data);
                 break;
             case 4:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                mmu.logicalWrite(regs[destReg], data);
+                path.write(regs[destReg], data);
                 break;
             case 5:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[destReg]);
-                mmu.logicalWrite(temp1, data);
+                temp1 = path.read(regs[destReg]);
+                path.write(temp1, data);
                 break;
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                mmu.logicalWrite(temp1, data);
+                path.write(temp1, data);
                 break;
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
-                mmu.logicalWrite(temp1, data);
+                temp1 = path.read(temp1);
+                path.write(temp1, data);
                 break;
         }
     }
@@ -472,45 +503,45 @@ public class CPUDevice extends Thread implements QbusDevice {
                 return regs[destReg];
             case 1:
                 savedAddress = regs[destReg];
-                return mmu.logicalRead(regs[destReg]);
+                return path.read(regs[destReg]);
             case 2:
                 savedAddress = regs[destReg];
-                temp1 = mmu.logicalRead(regs[destReg]);
-                regs[destReg] += 2;
+                temp1 = readThrough(destReg);
+                stepRegister(destReg, 2);
                 return temp1;
             case 3:
-                temp1 = mmu.logicalRead(regs[destReg]);
+                temp1 = readThrough(destReg);
                 savedAddress = temp1;
-                regs[destReg] += 2;				// wrong place?
-                return mmu.logicalRead(temp1);
+                stepRegister(destReg, 2);				// wrong place?
+                return path.read(temp1);
             case 4:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
                 savedAddress = regs[destReg];
-                return mmu.logicalRead(regs[destReg]);
+                return path.read(regs[destReg]);
             case 5:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[destReg]);
+                temp1 = path.read(regs[destReg]);
                 savedAddress = temp1;
-                return mmu.logicalRead(temp1);
+                return path.read(temp1);
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
                 savedAddress = temp1;
-                return mmu.logicalRead(temp1);
+                return path.read(temp1);
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
+                temp1 = path.read(temp1);
                 savedAddress = temp1;
-                return mmu.logicalRead(temp1);
+                return path.read(temp1);
         }
         throw new Trap(Trap.Unimplemented);
     }
@@ -521,7 +552,7 @@ public class CPUDevice extends Thread implements QbusDevice {
             int destReg = ir & 07;
             regs[destReg] = data;
         } else {
-            mmu.logicalWrite(savedAddress, data);
+            path.write(savedAddress, data);
         }
     }
 
@@ -536,42 +567,45 @@ public class CPUDevice extends Thread implements QbusDevice {
                 return regs[destReg];
             case 2:
                 temp1 = regs[destReg];
-                regs[destReg] += 2;
+                stepRegister(destReg, 2);
                 return temp1;
             case 3:
                 // behavior on trap
                 temp1 = regs[destReg];
-                regs[destReg] += 2;
-                return mmu.logicalRead(temp1);
+                stepRegister(destReg, 2);
+                if (destReg == PC) {
+                    return path.fetch(temp1);
+                }
+                return path.read(temp1);
             case 4:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
                 return regs[destReg];
             case 5:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[destReg]);
+                temp1 = path.read(regs[destReg]);
                 return temp1;
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
                 return temp1;
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
+                temp1 = path.read(temp1);
                 return temp1;
         }
         throw new Trap(Trap.Unimplemented);
     }
 
-    private final short loadDestPrevious() throws Trap {
+    private final short loadDestPrevious(boolean dSpace) throws Trap {
         int destMode = (ir & 070) >> 3;
         int destReg = ir & 07;
         short temp1;
@@ -589,45 +623,45 @@ public class CPUDevice extends Thread implements QbusDevice {
                     return regs[destReg];
                 }
             case 1:
-                return mmu.logicalReadPrevious(regs[destReg]);
+                return mmu.logicalReadPrevious(regs[destReg], dSpace);
             case 2:
-                temp1 = mmu.logicalReadPrevious(regs[destReg]);
-                regs[destReg] += 2;
+                temp1 = mmu.logicalReadPrevious(regs[destReg], dSpace);
+                stepRegister(destReg, 2);
                 return temp1;
             case 3:
-                temp1 = mmu.logicalRead(regs[destReg]);
-                temp1 = mmu.logicalReadPrevious(temp1);
-                regs[destReg] += 2;
+                temp1 = readThrough(destReg);
+                temp1 = mmu.logicalReadPrevious(temp1, dSpace);
+                stepRegister(destReg, 2);
                 return temp1;
             case 4:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                return mmu.logicalReadPrevious(regs[destReg]);
+                return mmu.logicalReadPrevious(regs[destReg], dSpace);
             case 5:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[destReg]);
-                return mmu.logicalReadPrevious(temp1);
+                temp1 = path.read(regs[destReg]);
+                return mmu.logicalReadPrevious(temp1, dSpace);
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                return mmu.logicalReadPrevious(temp1);
+                return mmu.logicalReadPrevious(temp1, dSpace);
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
-                return mmu.logicalReadPrevious(temp1);
+                temp1 = path.read(temp1);
+                return mmu.logicalReadPrevious(temp1, dSpace);
         }
         throw new Trap(Trap.Unimplemented);
     }
 
-    private final void storeDestPrevious(short data) throws Trap {
+    private final void storeDestPrevious(short data, boolean dSpace) throws Trap {
         int destMode = (ir & 070) >> 3;
         int destReg = ir & 07;
         short temp1;
@@ -646,50 +680,50 @@ public class CPUDevice extends Thread implements QbusDevice {
                 }
                 break;
             case 1:
-                mmu.logicalWritePrevious(regs[destReg], data);
+                mmu.logicalWritePrevious(regs[destReg], data, dSpace);
                 break;
             case 2:
-                mmu.logicalWritePrevious(regs[destReg], data);
-                regs[destReg] += 2;
+                mmu.logicalWritePrevious(regs[destReg], data, dSpace);
+                stepRegister(destReg, 2);
                 break;
             case 3:
-                temp1 = mmu.logicalRead(regs[destReg]);
-                mmu.logicalWritePrevious(temp1, data);
-                regs[destReg] += 2;
+                temp1 = readThrough(destReg);
+                mmu.logicalWritePrevious(temp1, data, dSpace);
+                stepRegister(destReg, 2);
                 break;
             case 4:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                mmu.logicalWritePrevious(regs[destReg], data);
+                mmu.logicalWritePrevious(regs[destReg], data, dSpace);
                 break;
             case 5:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[destReg]);
-                mmu.logicalWritePrevious(temp1, data);
+                temp1 = path.read(regs[destReg]);
+                mmu.logicalWritePrevious(temp1, data, dSpace);
                 break;
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                mmu.logicalWritePrevious(temp1, data);
+                mmu.logicalWritePrevious(temp1, data, dSpace);
                 break;
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
-                mmu.logicalWritePrevious(temp1, data);
+                temp1 = path.read(temp1);
+                mmu.logicalWritePrevious(temp1, data, dSpace);
                 break;
         }
     }
 
     private final short pop() throws Trap {
-        short data = mmu.logicalRead(regs[SP]);
+        short data = path.read(regs[SP]);
         regs[SP] += 2;
         return data;
     }
@@ -699,7 +733,7 @@ public class CPUDevice extends Thread implements QbusDevice {
         if (isKernel() && stackLimit()) {
             stackCheck = true;
         }
-        mmu.logicalWrite(regs[SP], data);
+        path.write(regs[SP], data);
     }
 
     private final byte loadSourceByte() throws Trap {
@@ -711,47 +745,47 @@ public class CPUDevice extends Thread implements QbusDevice {
             case 0:
                 return (byte) (regs[sourceReg] & LNB);
             case 1:
-                return mmu.logicalReadByte(regs[sourceReg]);
+                return path.readByte(regs[sourceReg]);
             case 2:
-                temp2 = mmu.logicalReadByte(regs[sourceReg]);
+                temp2 = readByteThrough(sourceReg);
                 if (sourceReg >= 6) {
-                    regs[sourceReg] += 2;
+                    stepRegister(sourceReg, 2);
                 } else {
-                    regs[sourceReg] += 1;
+                    stepRegister(sourceReg, 1);
                 }
                 return temp2;
             case 3:
-                temp1 = mmu.logicalRead(regs[sourceReg]);
-                regs[sourceReg] += 2;
-                return mmu.logicalReadByte(temp1);
+                temp1 = readThrough(sourceReg);
+                stepRegister(sourceReg, 2);
+                return path.readByte(temp1);
             case 4:
                 if (sourceReg >= 6) {
-                    regs[sourceReg] -= 2;
+                    stepRegister(sourceReg, -2);
                     if ((sourceReg == SP) && isKernel() && stackLimit()) {
                         stackCheck = true;
                     }
                 } else {
-                    regs[sourceReg] -= 1;
+                    stepRegister(sourceReg, -1);
                 }
-                return mmu.logicalReadByte(regs[sourceReg]);
+                return path.readByte(regs[sourceReg]);
             case 5:
-                regs[sourceReg] -= 2;
+                stepRegister(sourceReg, -2);
                 if ((sourceReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[sourceReg]);
-                return mmu.logicalReadByte(temp1);
+                temp1 = path.read(regs[sourceReg]);
+                return path.readByte(temp1);
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[sourceReg] + temp1);
-                return mmu.logicalReadByte(temp1);
+                return path.readByte(temp1);
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[sourceReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
-                return mmu.logicalReadByte(temp1);
+                temp1 = path.read(temp1);
+                return path.readByte(temp1);
         }
         throw new Trap(Trap.Unimplemented);
     }
@@ -778,52 +812,52 @@ public class CPUDevice extends Thread implements QbusDevice {
                 regs[destReg] = (short) temp2;
                 break;
             case 1:
-                mmu.logicalWriteByte(regs[destReg], data);
+                path.writeByte(regs[destReg], data);
                 break;
             case 2:
-                mmu.logicalWriteByte(regs[destReg], data);
+                path.writeByte(regs[destReg], data);
                 if (destReg >= 6) {
-                    regs[destReg] += 2;
+                    stepRegister(destReg, 2);
                 } else {
-                    regs[destReg] += 1;
+                    stepRegister(destReg, 1);
                 }
                 break;
             case 3:
-                temp1 = mmu.logicalRead(regs[destReg]);
-                regs[destReg] += 2;
-                mmu.logicalWriteByte(temp1, data);
+                temp1 = readThrough(destReg);
+                stepRegister(destReg, 2);
+                path.writeByte(temp1, data);
                 break;
             case 4:
                 if (destReg >= 6) {
-                    regs[destReg] -= 2;
+                    stepRegister(destReg, -2);
                     if ((destReg == SP) && isKernel() && stackLimit()) {
                         stackCheck = true;
                     }
                 } else {
-                    regs[destReg] -= 1;
+                    stepRegister(destReg, -1);
                 }
-                mmu.logicalWriteByte(regs[destReg], data);
+                path.writeByte(regs[destReg], data);
                 break;
             case 5:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[destReg]);
-                mmu.logicalWriteByte(temp1, data);
+                temp1 = path.read(regs[destReg]);
+                path.writeByte(temp1, data);
                 break;
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                mmu.logicalWriteByte(temp1, data);
+                path.writeByte(temp1, data);
                 break;
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
-                mmu.logicalWriteByte(temp1, data);
+                temp1 = path.read(temp1);
+                path.writeByte(temp1, data);
                 break;
         }
     }
@@ -838,53 +872,53 @@ public class CPUDevice extends Thread implements QbusDevice {
                 return (byte) (regs[destReg] & LNB);
             case 1:
                 savedAddress = regs[destReg];
-                return mmu.logicalReadByte(regs[destReg]);
+                return path.readByte(regs[destReg]);
             case 2:
                 savedAddress = regs[destReg];
-                temp2 = mmu.logicalReadByte(regs[destReg]);
+                temp2 = readByteThrough(destReg);
                 if (destReg >= 6) {
-                    regs[destReg] += 2;
+                    stepRegister(destReg, 2);
                 } else {
-                    regs[destReg] += 1;
+                    stepRegister(destReg, 1);
                 }
                 return temp2;
             case 3:
-                temp1 = mmu.logicalRead(regs[destReg]);
+                temp1 = readThrough(destReg);
                 savedAddress = temp1;
-                regs[destReg] += 2;
-                return mmu.logicalReadByte(temp1);
+                stepRegister(destReg, 2);
+                return path.readByte(temp1);
             case 4:
                 if (destReg >= 6) {
-                    regs[destReg] -= 2;
+                    stepRegister(destReg, -2);
                     if ((destReg == SP) && isKernel() && stackLimit()) {
                         stackCheck = true;
                     }
                 } else {
-                    regs[destReg] -= 1;
+                    stepRegister(destReg, -1);
                 }
                 savedAddress = regs[destReg];
-                return mmu.logicalReadByte(regs[destReg]);
+                return path.readByte(regs[destReg]);
             case 5:
-                regs[destReg] -= 2;
+                stepRegister(destReg, -2);
                 if ((destReg == SP) && isKernel() && stackLimit()) {
                     stackCheck = true;
                 }
-                temp1 = mmu.logicalRead(regs[destReg]);
+                temp1 = path.read(regs[destReg]);
                 savedAddress = temp1;
-                return mmu.logicalReadByte(temp1);
+                return path.readByte(temp1);
             case 6:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
                 savedAddress = temp1;
-                return mmu.logicalReadByte(temp1);
+                return path.readByte(temp1);
             case 7:
-                temp1 = mmu.logicalRead(regs[PC]);
+                temp1 = path.fetch(regs[PC]);
                 regs[PC] += 2;
                 temp1 = (short) (regs[destReg] + temp1);
-                temp1 = mmu.logicalRead(temp1);
+                temp1 = path.read(temp1);
                 savedAddress = temp1;
-                return mmu.logicalReadByte(temp1);
+                return path.readByte(temp1);
         }
         throw new Trap(Trap.Unimplemented);
     }
@@ -898,7 +932,7 @@ public class CPUDevice extends Thread implements QbusDevice {
             temp += ((int) data) & LNB;
             regs[destReg] = (short) temp;
         } else {
-            mmu.logicalWriteByte(savedAddress, data);
+            path.writeByte(savedAddress, data);
         }
     }
 
@@ -949,6 +983,7 @@ public class CPUDevice extends Thread implements QbusDevice {
         regs[PC] = newpc;
         stacks[oldmode] = regs[SP];
         regs[SP] = stacks[newmode];
+        mmu.selectPath();
         if (ir == 0000006) {
             throw new Trap(Trap.RTTInstruction);
         }
@@ -1323,13 +1358,23 @@ public class CPUDevice extends Thread implements QbusDevice {
     }
 
     private final void executeMFPI() throws Trap {
-        short data = loadDestPrevious();
+        short data = loadDestPrevious(false);
         push(data);
     }
 
     private final void executeMTPI() throws Trap {
         short data = pop();
-        storeDestPrevious(data);
+        storeDestPrevious(data, false);
+    }
+
+    private final void executeMFPD() throws Trap {
+        short data = loadDestPrevious(true);
+        push(data);
+    }
+
+    private final void executeMTPD() throws Trap {
+        short data = pop();
+        storeDestPrevious(data, true);
     }
 
     private final void executeSXT() throws Trap {
@@ -2399,10 +2444,10 @@ public class CPUDevice extends Thread implements QbusDevice {
                                 executeMTPS();
                                 return;				// 106400 - 106477
                             case 5:
-                                executeMFPI();
+                                executeMFPD();
                                 return;				// 106500 - 106577
                             case 6:
-                                executeMTPI();
+                                executeMTPD();
                                 return;				// 106600 - 106677
                             case 7:
                                 executeMFPS();
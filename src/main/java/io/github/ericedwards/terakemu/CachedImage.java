@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * CachedImage.java - Disk image read and written through a SectorCache.
+ *
+ * A read that misses fetches the whole run of missing sectors it needs
+ * with one read of the image underneath.  A write enters all of its
+ * sectors before the cache's dirty limit is checked, so what has to go
+ * back goes as one merged write.  A write-through CachedImage sends each
+ * write on to the image before returning, in the order the writes were
+ * made, whatever the cache's dirty limit; a journaled image needs that
+ * to keep its guarantee.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class CachedImage implements MediaImage {
+
+    private final MediaImage base;
+    private final SectorCache cache;
+    private final int unit;
+    private final int sectorBytes;
+    private final boolean writeThrough;
+
+    public CachedImage(MediaImage base, SectorCache cache, int unit) {
+        this(base, cache, unit, false);
+    }
+
+    public CachedImage(MediaImage base, SectorCache cache, int unit,
+            boolean writeThrough) {
+        this.base = base;
+        this.writeThrough = writeThrough;
+        this.cache = cache;
+        this.unit = unit;
+        this.sectorBytes = cache.getSectorBytes();
+    }
+
+    @Override
+    public long length() throws IOException {
+        return base.length();
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            long sector = position / sectorBytes;
+            int from = (int) (position % sectorBytes);
+            int length = Math.min(sectorBytes - from, dst.remaining());
+            if (!cache.get(unit, sector, dst, from, length)) {
+                length = fill(sector, from, dst);
+            }
+            position += length;
+        }
+    }
+
+    // fill() - Read the missing sectors from sector on that dst still
+    // needs, enter them and copy them out.  Returns the bytes copied.
+    private int fill(long sector, int from, ByteBuffer dst) throws IOException {
+        int wanted = (from + dst.remaining() + sectorBytes - 1) / sectorBytes;
+        int run = 1;
+        while ((run < wanted) && !cache.contains(unit, sector + run)) {
+            ++run;
+        }
+        ByteBuffer b = ByteBuffer.allocate(run * sectorBytes);
+        base.read(sector * sectorBytes, b);
+        b.flip();
+        for (int i = 0; i < run; ++i) {
+            cache.put(unit, base, sector + i, b, false);
+        }
+        b.position(from);
+        b.limit(Math.min(b.capacity(), from + dst.remaining()));
+        int length = b.remaining();
+        dst.put(b);
+        return length;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            long sector = position / sectorBytes;
+            int from = (int) (position % sectorBytes);
+            int length = Math.min(sectorBytes - from, src.remaining());
+            if (length == sectorBytes) {
+                cache.put(unit, base, sector, src, true);
+            } else if (!cache.update(unit, sector, src, from, length)) {
+                ByteBuffer b = ByteBuffer.allocate(sectorBytes);
+                base.read(sector * sectorBytes, b);
+                b.flip();
+                cache.put(unit, base, sector, b, false);
+                cache.update(unit, sector, src, from, length);
+            }
+            position += length;
+        }
+        if (writeThrough) {
+            cache.flush(unit);
+        }
+        cache.limitDirty();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        cache.flush(unit);
+        base.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            cache.flush(unit);
+        } finally {
+            cache.invalidate(unit);
+            base.close();
+        }
+    }
+
+}
@@ -173,6 +173,8 @@ public class CommandLine extends Thread {
 			System.out.print("CM=K ");
 			break;
 		case 1:
+			System.out.print("CM=S ");
+			break;
 		case 2:
 			System.out.print("CM=invalid ");
 			break;
@@ -185,6 +187,8 @@ public class CommandLine extends Thread {
 			System.out.print("PM=K ");
 			break;
 		case 1:
+			System.out.print("PM=S ");
+			break;
 		case 2:
 			System.out.print("PM=invalid ");
 			break;
@@ -235,8 +239,12 @@ public class CommandLine extends Thread {
 		System.out.println("");
 		System.out.print("MMR0=");
 		dumpOctal16(mmu.mmr0);
+		System.out.print("MMR1=");
+		dumpOctal16(mmu.mmr1);
 		System.out.print("MMR2=");
 		dumpOctal16(mmu.mmr2);
+		System.out.print("MMR3=");
+		dumpOctal16(mmu.mmr3);
 		System.out.println("");
 	}
 
@@ -385,6 +393,14 @@ public class CommandLine extends Thread {
 	//
 	//
 
+	private void flushCmd() {
+		unibus.flush();
+	}
+
+	//
+	//
+	//
+
 	private void statusCmd() {
 		unibus.dumpDevices();
 	}
@@ -399,6 +415,7 @@ public class CommandLine extends Thread {
 		output.println("b [addr]                       boot");
 		output.println("c                              processor dump");
 		output.println("d [addr] [addr]                memory dump");
+		output.println("f                              flush disk caches");
 		output.println("g [addr]                       go");
 		output.println("h                              halt");
 	//	output.println("l <filename>                   load config");
@@ -463,6 +480,9 @@ public class CommandLine extends Thread {
 			case 'd':
 				memoryDumpCmd();
 				break;
+			case 'f':
+				flushCmd();
+				break;
 			case 'g':
 				goCmd();
 				break;
@@ -470,6 +490,7 @@ public class CommandLine extends Thread {
 				haltCmd();
 				break;
 			case 'q':
+				unibus.flush();
 				done = true;
 				break;
 			case 's':
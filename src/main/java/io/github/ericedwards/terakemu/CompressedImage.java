@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * CompressedImage.java - Sparse disk image with deflated blocks.
+ *
+ * The image is cut into fixed size blocks, each stored deflated.  The
+ * file is laid out as
+ *
+ *     header    magic "TKDZ", version, block size, image length
+ *     index     per block, the file offset and stored length
+ *     data      the stored blocks, in no particular order
+ *
+ * A block that is all zeros has offset 0 and takes no space, so an
+ * empty image is just a header and an index.  A block that deflate
+ * can't shrink is stored as is.  A rewritten block goes back in its old
+ * place if it fits and at the end of the file if not; DiskImageTool
+ * compress squeezes out the space that leaves behind.
+ *
+ * One block at a time is kept inflated, writes to it are held until
+ * another block is wanted or the image is flushed.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class CompressedImage implements MediaImage {
+
+    public static final int MAGIC = 0x5a444b54;         // "TKDZ"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_BLOCK = 4096;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 12;           // long offset, int length
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final int blockBytes;
+    private final long length;
+    private final long[] offsets;
+    private final int[] stored;
+    private long end;                                   // where new blocks go
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final byte[] block;                         // the inflated block
+    private final byte[] packed;
+    private long current;                               // its number, or -1
+    private boolean dirty;
+
+    public CompressedImage(String path, boolean readOnly) throws IOException {
+        this.readOnly = readOnly;
+        file = new RandomAccessFile(path, readOnly ? "r" : "rw");
+        channel = file.getChannel();
+        try {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(0, h);
+            h.flip();
+            if ((h.getInt() != MAGIC) || (h.getInt() != VERSION)) {
+                throw new IOException(path + " is not a compressed image");
+            }
+            blockBytes = h.getInt();
+            length = h.getLong();
+            if ((blockBytes <= 0) || (length < 0)) {
+                throw new IOException(path + " has a bad header");
+            }
+            int blocks = (int) ((length + blockBytes - 1) / blockBytes);
+            offsets = new long[blocks];
+            stored = new int[blocks];
+            ByteBuffer index = ByteBuffer.allocate(blocks * ENTRY_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(HEADER_SIZE, index);
+            index.flip();
+            end = HEADER_SIZE + (blocks * (long) ENTRY_SIZE);
+            for (int i = 0; i < blocks; ++i) {
+                offsets[i] = index.getLong();
+                stored[i] = index.getInt();
+                end = Math.max(end, offsets[i] + stored[i]);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        deflater = new Deflater();
+        inflater = new Inflater();
+        block = new byte[blockBytes];
+        packed = new byte[blockBytes];
+        current = -1;
+        dirty = false;
+    }
+
+    // isCompressed() - Does the file start with the magic number?
+    public static boolean isCompressed(String path) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(path, "r");
+        try {
+            if (f.length() < HEADER_SIZE) {
+                return false;
+            }
+            return Integer.reverseBytes(f.readInt()) == MAGIC;
+        } finally {
+            f.close();
+        }
+    }
+
+    // create() - Make an empty image, which is every block sparse.
+    public static void create(String path, long length, int blockBytes)
+            throws IOException {
+        int blocks = (int) ((length + blockBytes - 1) / blockBytes);
+        RandomAccessFile f = new RandomAccessFile(path, "rw");
+        try {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(MAGIC).putInt(VERSION).putInt(blockBytes).putLong(length);
+            h.clear();
+            f.setLength(0);
+            f.getChannel().write(h, 0);
+            f.setLength(HEADER_SIZE + (blocks * (long) ENTRY_SIZE));
+        } finally {
+            f.close();
+        }
+    }
+
+    private void readFully(long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    public int getBlockBytes() {
+        return blockBytes;
+    }
+
+    // load() - Make block n the inflated one.
+    private void load(long n) throws IOException {
+        if (n == current) {
+            return;
+        }
+        writeBack();
+        int i = (int) n;
+        if (offsets[i] == 0) {
+            java.util.Arrays.fill(block, (byte) 0);
+        } else if (stored[i] == blockBytes) {
+            readFully(offsets[i], ByteBuffer.wrap(block));
+        } else {
+            readFully(offsets[i], ByteBuffer.wrap(packed, 0, stored[i]));
+            inflater.reset();
+            inflater.setInput(packed, 0, stored[i]);
+            try {
+                if (inflater.inflate(block) != blockBytes) {
+                    throw new IOException("short block " + n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("bad block " + n, e);
+            }
+        }
+        current = n;
+    }
+
+    // writeBack() - Store the inflated block if it has been changed.
+    private void writeBack() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        int i = (int) current;
+        long offset = 0;
+        int size = 0;
+        if (!isZero(block)) {
+            deflater.reset();
+            deflater.setInput(block);
+            deflater.finish();
+            size = deflater.deflate(packed);
+            byte[] data = packed;
+            if (!deflater.finished() || (size >= blockBytes)) {
+                size = blockBytes;              // store it as is
+                data = block;
+            }
+            if ((offsets[i] != 0) && (size <= stored[i])) {
+                offset = offsets[i];
+            } else {
+                offset = end;
+                end += size;
+            }
+            writeFully(offset, ByteBuffer.wrap(data, 0, size));
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putLong(offset).putInt(size);
+        entry.flip();
+        writeFully(HEADER_SIZE + (i * (long) ENTRY_SIZE), entry);
+        offsets[i] = offset;
+        stored[i] = size;
+        dirty = false;
+    }
+
+    private static boolean isZero(byte[] b) {
+        for (byte x : b) {
+            if (x != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // isSparse() - Does block n take no space?
+    public synchronized boolean isSparse(long n) {
+        if ((n == current) && dirty) {
+            return isZero(block);
+        }
+        return offsets[(int) n] == 0;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer dst) throws IOException {
+        if ((position < 0) || ((position + dst.remaining()) > length)) {
+            throw new EOFException();
+        }
+        while (dst.hasRemaining()) {
+            load(position / blockBytes);
+            int from = (int) (position % blockBytes);
+            int count = Math.min(blockBytes - from, dst.remaining());
+            dst.put(block, from, count);
+            position += count;
+        }
+    }
+
+    @Override
+    public synchronized void write(long position, ByteBuffer src) throws IOException {
+        if (readOnly) {
+            throw new IOException("image is read only");
+        }
+        if ((position < 0) || ((position + src.remaining()) > length)) {
+            throw new EOFException();
+        }
+        while (src.hasRemaining()) {
+            load(position / blockBytes);
+            int from = (int) (position % blockBytes);
+            int count = Math.min(blockBytes - from, src.remaining());
+            src.get(block, from, count);
+            dirty = true;
+            position += count;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writeBack();
+        if (!readOnly) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writeBack();
+        } finally {
+            deflater.end();
+            inflater.end();
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * CompressedTape.java - Deflated tape image with block and record indexes.
+ *
+ * The tape, in the usual length, data, length form, is cut into 64K
+ * blocks that are deflated one after another.  The file is laid out as
+ *
+ *     header    magic "TKTZ", version, block size, tape length, block
+ *               count, where the indexes start
+ *     blocks    the deflated blocks, in tape order
+ *     index     per block, the file offset and stored length
+ *     records   the tape's TapeIndex
+ *
+ * Reading inflates one block at a time as the tape moves along it; a
+ * space or rewind goes straight to the block holding the new position.
+ * The image is read only, TMTapeDevice writes to a plain copy and
+ * compresses that back when it is done.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class CompressedTape implements MediaImage {
+
+    public static final int MAGIC = 0x5a544b54;         // "TKTZ"
+    public static final int VERSION = 1;
+    public static final int BLOCK = 0200000;            // 64K bytes
+    private static final int HEADER_SIZE = 48;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    private final int blockBytes;
+    private final long[] offsets;
+    private final int[] stored;
+    private final TapeIndex index;
+
+    private final Inflater inflater;
+    private final byte[] block;
+    private byte[] packed;
+    private int current;                                // inflated block, or -1
+    private boolean closed;
+
+    public CompressedTape(String path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        try {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(h, 0);
+            h.flip();
+            if ((h.getInt() != MAGIC) || (h.getInt() != VERSION)) {
+                throw new IOException(path + " is not a compressed tape");
+            }
+            blockBytes = h.getInt();
+            length = h.getLong();
+            int blocks = h.getInt();
+            long indexStart = h.getLong();
+            long recordsStart = h.getLong();
+            if ((blockBytes <= 0) || (blocks != (int) ((length + blockBytes - 1) / blockBytes))) {
+                throw new IOException(path + " has a bad header");
+            }
+            ByteBuffer b = ByteBuffer.allocate(blocks * 12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(b, indexStart);
+            b.flip();
+            offsets = new long[blocks];
+            stored = new int[blocks];
+            for (int i = 0; i < blocks; ++i) {
+                offsets[i] = b.getLong();
+                stored[i] = b.getInt();
+            }
+            channel.position(recordsStart);
+            index = TapeIndex.read(new DataInputStream(
+                    Channels.newInputStream(channel)));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        inflater = new Inflater();
+        block = new byte[blockBytes];
+        packed = new byte[0];
+        current = -1;
+    }
+
+    // isCompressedTape() - Does the file start with the magic number?
+    public static boolean isCompressedTape(String path) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(path, "r")) {
+            if (f.length() < HEADER_SIZE) {
+                return false;
+            }
+            return Integer.reverseBytes(f.readInt()) == MAGIC;
+        }
+    }
+
+    // create() - Compress a plain tape image into a new container.  It is
+    // written beside the target and renamed over it at the end.
+    public static void create(MediaImage tape, String path) throws IOException {
+        TapeIndex records = TapeIndex.build(tape);
+        long length = tape.length();
+        int blocks = (int) ((length + BLOCK - 1) / BLOCK);
+        File temp = new File(path + ".new");
+        Deflater deflater = new Deflater();
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            FileChannel ch = out.getChannel();
+            long position = HEADER_SIZE;
+            ByteBuffer index = ByteBuffer.allocate(blocks * 12).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] data = new byte[BLOCK];
+            byte[] packed = new byte[BLOCK + (BLOCK / 8)];
+            for (int i = 0; i < blocks; ++i) {
+                int size = (int) Math.min(BLOCK, length - ((long) i * BLOCK));
+                ByteBuffer in = ByteBuffer.wrap(data, 0, size);
+                tape.read((long) i * BLOCK, in);
+                Arrays.fill(data, size, BLOCK, (byte) 0);
+                deflater.reset();
+                deflater.setInput(data, 0, BLOCK);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == packed.length) {
+                        packed = Arrays.copyOf(packed, packed.length * 2);
+                    }
+                    n += deflater.deflate(packed, n, packed.length - n);
+                }
+                ByteBuffer b = ByteBuffer.wrap(packed, 0, n);
+                while (b.hasRemaining()) {
+                    ch.write(b, position + b.position());
+                }
+                index.putLong(position).putInt(n);
+                position += n;
+            }
+            long indexStart = position;
+            index.flip();
+            while (index.hasRemaining()) {
+                ch.write(index, indexStart + index.position());
+            }
+            long recordsStart = indexStart + (blocks * 12L);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bytes));
+            records.write(dos);
+            dos.flush();
+            ByteBuffer r = ByteBuffer.wrap(bytes.toByteArray());
+            while (r.hasRemaining()) {
+                ch.write(r, recordsStart + r.position());
+            }
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(MAGIC).putInt(VERSION).putInt(BLOCK).putLong(length);
+            h.putInt(blocks).putLong(indexStart).putLong(recordsStart);
+            h.clear();
+            while (h.hasRemaining()) {
+                ch.write(h, h.position());
+            }
+            ch.force(true);
+        } finally {
+            deflater.end();
+        }
+        File target = new File(path);
+        if (!temp.renameTo(target)) {
+            throw new IOException("can't replace " + path);
+        }
+    }
+
+    // expand() - Write the whole tape out as a plain image.
+    public void expand(String path) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(path, "rw")) {
+            out.setLength(0);
+            FileChannel ch = out.getChannel();
+            ByteBuffer b = ByteBuffer.allocate(blockBytes);
+            for (long position = 0; position < length; position += blockBytes) {
+                b.clear();
+                b.limit((int) Math.min(blockBytes, length - position));
+                read(position, b);
+                b.flip();
+                while (b.hasRemaining()) {
+                    ch.write(b, position + b.position());
+                }
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer b, long offset) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b, offset + b.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    public TapeIndex getIndex() {
+        return index;
+    }
+
+    // load() - Inflate block n, unless it is the one already inflated.
+    private void load(int n) throws IOException {
+        if (n == current) {
+            return;
+        }
+        current = -1;
+        if (packed.length < stored[n]) {
+            packed = new byte[stored[n]];
+        }
+        readFully(ByteBuffer.wrap(packed, 0, stored[n]), offsets[n]);
+        inflater.reset();
+        inflater.setInput(packed, 0, stored[n]);
+        try {
+            if (inflater.inflate(block) != blockBytes) {
+                throw new IOException("short tape block " + n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("bad tape block " + n, e);
+        }
+        current = n;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new IOException("tape closed");
+        }
+        if ((position < 0) || ((position + dst.remaining()) > length)) {
+            throw new EOFException();
+        }
+        while (dst.hasRemaining()) {
+            load((int) (position / blockBytes));
+            int from = (int) (position % blockBytes);
+            int count = Math.min(blockBytes - from, dst.remaining());
+            dst.put(block, from, count);
+            position += count;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        throw new IOException("compressed tapes are read only");
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inflater.end();
+        file.close();
+    }
+
+}
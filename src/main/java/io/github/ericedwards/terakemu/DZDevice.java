@@ -0,0 +1,679 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * DZDevice.java - DZ11 terminal multiplexer.
+ *
+ * Eight terminal lines per DZ11, each a telnet port; lines=16 puts a
+ * second DZ11 at the next register set (base+010, vectors +010), the
+ * way 2.9BSD configures two of them.  Line n listens on port+n, port
+ * defaulting to 2100.
+ *
+ * All the sockets are served by one selector thread, non-blocking.
+ * Each line has an input ring, filled by that thread, and an output
+ * ring, drained by it.  The Qbus side only ever takes from the one and
+ * puts into the other, so the registers never wait on a lock: received
+ * characters are moved into the 64 entry silo, one per line every
+ * rxdelay instructions, and a line is offered to the transmitter scan
+ * only while its output ring has room.  A client that doesn't keep up
+ * holds up its own line and nothing else.  When a line's input ring
+ * fills the selector stops reading that socket until the guest catches
+ * up, so nothing is dropped unless the line's receiver is off.
+ *
+ * Dropping DTR hangs up the line.  Carrier, in the modem status
+ * register, means a client is connected.  Maintenance loopback, break
+ * and line parameters other than receiver on aren't emulated.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DZDevice implements QbusDevice, DeviceStatistics {
+
+    static Logger logger = LoggerFactory.getLogger(DZDevice.class);
+
+    private static final int DZ_BASE = 0760100;
+    private static final int DZ_SIZE = 4;	// registers per DZ11
+    private static final int DZ_VECTOR = 0310;	// receive, transmit is +4
+    private static final int DZ_BRLEVEL = 5;
+    private static final int DZ_PORT = 2100;	// line 0's telnet port
+    private static final int DZ_LINES = 8;	// per DZ11
+    private static final int DZ_SILO = 64;
+    private static final int DZ_ALARM = 16;	// silo alarm level
+    private static final int DZ_RING = 1024;	// per line, each way
+    private static final int DZ_RX_DELAY = 50;	// in instructions
+    private static final int DZ_TX_DELAY = 50;
+    private static final int DZ_TX_POLL = 1000;	// while output rings are full
+    private static final int DZ_PAUSE_MS = 100;	// recheck paused lines
+
+    // Control and status register definitions.
+    private static final int CSR_CLR = 020;
+    private static final int CSR_MSE = 040;	// master scan enable
+    private static final int CSR_RIE = 0100;
+    private static final int CSR_RDONE = 0200;
+    private static final int CSR_TLINE = 03400;
+    private static final int CSR_SAE = 010000;	// silo alarm enable
+    private static final int CSR_SA = 020000;	// silo alarm
+    private static final int CSR_TIE = 040000;
+    private static final int CSR_TRDY = 0100000;
+    private static final int CSR_WRITABLE = 0050150;
+
+    // Receiver buffer and line parameter register definitions.
+    private static final int RBUF_VALID = 0100000;
+    private static final int LPR_RXON = 010000;
+
+    // Event data is (DZ11 << 1) | one of these.
+    private static final int DZ_EVENT_TX = 0;
+    private static final int DZ_EVENT_RX = 1;
+
+    // A terminal line.  The rings are the only thing both threads touch,
+    // besides the flags that pass requests between them.
+    private static class Line {
+        final int number;
+        final ByteRing in = new ByteRing(DZ_RING);	// socket to guest
+        final ByteRing out = new ByteRing(DZ_RING);	// guest to socket
+        final AtomicBoolean kick = new AtomicBoolean();	// selector, look at me
+        final AtomicBoolean paused = new AtomicBoolean();	// not reading
+        volatile SocketChannel channel;		// null if nobody's there
+        volatile boolean hangup;
+        ServerSocketChannel server;
+        SelectionKey key;
+        ByteBuffer pending;			// written to the socket in part
+        final byte[] outBytes = new byte[DZ_RING];
+        int lpr;
+
+        Line(int number) {
+            this.number = number;
+        }
+    }
+
+    // One DZ11's registers and silo.  Only the Qbus side touches these.
+    private class Mux {
+        final int index;
+        final int rvector;
+        final int tvector;
+        final Line[] lines = new Line[DZ_LINES];
+        final int[] silo = new int[DZ_SILO];
+        final AtomicBoolean rxScheduled = new AtomicBoolean();
+        boolean txScheduled;
+        int siloHead;
+        int siloCount;
+        int alarmCount;
+        int csr;
+        int tcr;				// line enables, DTR in the high byte
+        int txLine;
+        int rxLine;
+
+        Mux(int index, int vector) {
+            this.index = index;
+            rvector = vector;
+            tvector = vector + 4;
+        }
+
+        void clear() {
+            csr = 0;
+            tcr = 0;
+            siloHead = 0;
+            siloCount = 0;
+            alarmCount = 0;
+            txLine = 0;
+            rxLine = 0;
+            for (Line l : lines) {
+                l.lpr = 0;
+                l.in.clear();
+                resumeInput(l);
+            }
+            updateRx();
+            updateTx();
+        }
+
+        int rbuf() {
+            if (siloCount == 0) {
+                return 0;
+            }
+            int data = silo[siloHead];
+            siloHead = (siloHead + 1) % DZ_SILO;
+            --siloCount;
+            csr &= ~CSR_SA;
+            alarmCount = 0;
+            updateRx();
+            for (Line l : lines) {
+                if (!l.in.isEmpty()) {
+                    scheduleRx(this, rxDelay);
+                    break;
+                }
+            }
+            return data;
+        }
+
+        // receive() - Move a character from each line with input, taking
+        // turns, into the silo.  True if there's more to come.
+        boolean receive() {
+            boolean more = false;
+            for (int i = 0; i < DZ_LINES; ++i) {
+                Line l = lines[(rxLine + i) % DZ_LINES];
+                if (siloCount == DZ_SILO) {
+                    return false;			// rbuf() picks it up
+                }
+                int c = l.in.poll();
+                if (c < 0) {
+                    continue;
+                }
+                if ((l.lpr & LPR_RXON) != 0) {
+                    silo[(siloHead + siloCount) % DZ_SILO] = RBUF_VALID
+                            | ((l.number % DZ_LINES) << 8) | c;
+                    ++siloCount;
+                    ++alarmCount;
+                    if (alarmCount >= DZ_ALARM) {
+                        csr |= CSR_SA;
+                    }
+                    ++statIn;
+                }
+                resumeInput(l);
+                more |= !l.in.isEmpty();
+            }
+            rxLine = (rxLine + 1) % DZ_LINES;
+            updateRx();
+            return more;
+        }
+
+        // scan() - Find the next enabled line the transmitter can take a
+        // character for.
+        void scan() {
+            if (((csr & CSR_MSE) != 0) && ((csr & CSR_TRDY) == 0)) {
+                boolean full = false;
+                for (int i = 1; i <= DZ_LINES; ++i) {
+                    int n = (txLine + i) % DZ_LINES;
+                    if ((tcr & (1 << n)) == 0) {
+                        continue;
+                    }
+                    if (lines[n].out.remaining() == 0) {
+                        full = true;
+                        continue;
+                    }
+                    txLine = n;
+                    csr = (csr & ~CSR_TLINE) | CSR_TRDY | (n << 8);
+                    full = false;
+                    break;
+                }
+                if (full) {
+                    scheduleTx(this, DZ_TX_POLL);
+                }
+            }
+            updateTx();
+        }
+
+        // transmit() - A character for the line the scan picked.
+        void transmit(int c) {
+            if ((csr & CSR_TRDY) == 0) {
+                return;
+            }
+            Line l = lines[txLine];
+            if (l.channel != null) {
+                l.out.offer(c);
+                kick(l);
+                ++statOut;
+            }
+            csr &= ~CSR_TRDY;
+            updateTx();
+            scheduleTx(this, txDelay);
+        }
+
+        void updateRx() {
+            if (siloCount != 0) {
+                csr |= CSR_RDONE;
+            } else {
+                csr &= ~CSR_RDONE;
+            }
+            boolean want;
+            if ((csr & CSR_SAE) != 0) {
+                want = (csr & CSR_SA) != 0;
+            } else {
+                want = (csr & CSR_RDONE) != 0;
+            }
+            if (want && ((csr & CSR_RIE) != 0)) {
+                qbus.scheduleInterrupt(DZDevice.this, DZ_BRLEVEL, rvector);
+            } else {
+                qbus.cancelInterrupt(DZDevice.this, DZ_BRLEVEL, rvector);
+            }
+        }
+
+        void updateTx() {
+            if (((csr & CSR_TRDY) != 0) && ((csr & CSR_TIE) != 0)) {
+                qbus.scheduleInterrupt(DZDevice.this, DZ_BRLEVEL, tvector);
+            } else {
+                qbus.cancelInterrupt(DZDevice.this, DZ_BRLEVEL, tvector);
+            }
+        }
+
+        short read(int reg) {
+            switch (reg) {
+                case 0:
+                    return (short) csr;
+                case 2:
+                    return (short) rbuf();
+                case 4:
+                    return (short) tcr;
+                default:
+                    int carrier = 0;
+                    for (int i = 0; i < DZ_LINES; ++i) {
+                        if (lines[i].channel != null) {
+                            carrier |= 0400 << i;
+                        }
+                    }
+                    return (short) carrier;
+            }
+        }
+
+        void write(int reg, int data) {
+            switch (reg) {
+                case 0:
+                    if ((data & CSR_CLR) != 0) {
+                        clear();
+                        return;
+                    }
+                    csr = (csr & ~CSR_WRITABLE) | (data & CSR_WRITABLE);
+                    if ((csr & CSR_MSE) == 0) {
+                        csr &= ~CSR_TRDY;
+                    } else {
+                        scheduleRx(this, 0);
+                    }
+                    updateRx();
+                    scan();
+                    break;
+                case 2:
+                    lines[data & 7].lpr = data;
+                    break;
+                case 4:
+                    int dropped = tcr & ~data & 0177400;
+                    tcr = data & 0177777;
+                    for (int i = 0; i < DZ_LINES; ++i) {
+                        if ((dropped & (0400 << i)) != 0) {
+                            hangup(lines[i]);
+                        }
+                    }
+                    scan();
+                    break;
+                default:
+                    transmit(data & 0377);		// break is ignored
+                    break;
+            }
+        }
+    }
+
+    private final Qbus qbus;
+    private final Mux[] muxes;
+    private final Line[] lines;
+    private final QbusDeviceInfo info;
+    private final AtomicBoolean kicked = new AtomicBoolean();
+    private final int rxDelay;
+    private final int txDelay;
+    private Selector selector;
+
+    private long statIn;			// characters each way
+    private long statOut;
+    private volatile long statConnects;
+
+    public DZDevice() {
+        this(DZ_BASE, "");
+    }
+
+    // DZDevice() - Options are lines (8 or 16), port, vector, rxdelay and
+    // txdelay.
+    public DZDevice(int base, String options) {
+        DeviceOptions opts = new DeviceOptions(options);
+        int count = opts.getInt("lines", DZ_LINES);
+        if ((count != DZ_LINES) && (count != (2 * DZ_LINES))) {
+            throw new IllegalArgumentException("DZ11 lines must be 8 or 16");
+        }
+        rxDelay = opts.getInt("rxdelay", DZ_RX_DELAY);
+        txDelay = opts.getInt("txdelay", DZ_TX_DELAY);
+        int vector = opts.getInt("vector", DZ_VECTOR);
+        lines = new Line[count];
+        muxes = new Mux[count / DZ_LINES];
+        for (int m = 0; m < muxes.length; ++m) {
+            muxes[m] = new Mux(m, vector + (010 * m));
+            for (int i = 0; i < DZ_LINES; ++i) {
+                Line l = new Line((m * DZ_LINES) + i);
+                lines[l.number] = l;
+                muxes[m].lines[i] = l;
+            }
+        }
+        qbus = Qbus.instance();
+        info = new QbusDeviceInfo(this, base, DZ_SIZE * muxes.length, "DZ11", false);
+        qbus.registerDevice(info);
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            logger.error("DZ11 can't open a selector", e);
+            return;
+        }
+        int port = opts.getInt("port", DZ_PORT);
+        for (Line l : lines) {
+            try {
+                l.server = ServerSocketChannel.open();
+                l.server.bind(new InetSocketAddress(port + l.number), 1);
+                l.server.configureBlocking(false);
+                l.server.register(selector, SelectionKey.OP_ACCEPT, l);
+            } catch (IOException e) {
+                logger.error("DZ11 line " + l.number + " can't listen on port "
+                        + (port + l.number), e);
+            }
+        }
+        Thread t = new Thread(this::select, "DZ11 selector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public String getStatistics() {
+        int connected = 0;
+        for (Line l : lines) {
+            if (l.channel != null) {
+                ++connected;
+            }
+        }
+        return "lines " + connected + "/" + lines.length + " connected, "
+                + statConnects + " connections, characters in " + statIn
+                + " out " + statOut;
+    }
+
+    @Override
+    public void reset() {
+        qbus.cancelEvents(this);
+        for (Mux m : muxes) {
+            m.rxScheduled.set(false);
+            m.txScheduled = false;
+            m.clear();
+        }
+    }
+
+    @Override
+    public short read(int addr) throws Trap {
+        int offset = addr - info.base;
+        return muxes[offset >> 3].read(offset & 6);
+    }
+
+    @Override
+    public void write(int addr, short data) throws Trap {
+        int offset = addr - info.base;
+        muxes[offset >> 3].write(offset & 6, ((int) data) & 0177777);
+    }
+
+    // writebyte() - The 2.9BSD driver writes the line enables, DTR and
+    // the transmit buffer a byte at a time.
+    @Override
+    public void writebyte(int addr, byte data) throws Trap {
+        int offset = addr - info.base;
+        Mux m = muxes[offset >> 3];
+        int reg = offset & 6;
+        int b = data & 0377;
+        int old;
+        switch (reg) {
+            case 0:
+                old = m.csr;
+                break;
+            case 4:
+                old = m.tcr;
+                break;
+            case 6:
+                if ((offset & 1) == 0) {
+                    m.transmit(b);
+                }
+                return;
+            default:
+                old = 0;
+                break;
+        }
+        if ((offset & 1) != 0) {
+            m.write(reg, (old & 0377) | (b << 8));
+        } else {
+            m.write(reg, (old & 0177400) | b);
+        }
+    }
+
+    @Override
+    public void eventService(int data) {
+        Mux m = muxes[data >> 1];
+        if ((data & 1) == DZ_EVENT_RX) {
+            m.rxScheduled.set(false);
+            if (((m.csr & CSR_MSE) != 0) && m.receive()) {
+                scheduleRx(m, rxDelay);
+            }
+        } else {
+            m.txScheduled = false;
+            m.scan();
+        }
+    }
+
+    @Override
+    public void interruptService() {
+    }
+
+    // scheduleRx() - Have the silo filled, unless that's already on its
+    // way.  The selector thread calls this too, holding no locks.
+    private void scheduleRx(Mux m, int delay) {
+        if (m.rxScheduled.compareAndSet(false, true)) {
+            qbus.scheduleEvent(this, delay, (m.index << 1) | DZ_EVENT_RX);
+        }
+    }
+
+    private void scheduleTx(Mux m, int delay) {
+        if (!m.txScheduled) {
+            m.txScheduled = true;
+            qbus.scheduleEvent(this, delay, (m.index << 1) | DZ_EVENT_TX);
+        }
+    }
+
+    // resumeInput() - The guest has taken input from a line the selector
+    // stopped reading, start it again once there's room.
+    private void resumeInput(Line l) {
+        if (l.paused.get() && (l.in.remaining() >= (l.in.capacity() / 2))
+                && l.paused.compareAndSet(true, false)) {
+            kick(l);
+        }
+    }
+
+    private void hangup(Line l) {
+        if (l.channel != null) {
+            l.hangup = true;
+            kick(l);
+        }
+    }
+
+    // kick() - Have the selector thread look at a line.
+    private void kick(Line l) {
+        l.kick.set(true);
+        if (kicked.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // select() - The selector thread.
+    private void select() {
+        ByteBuffer buffer = ByteBuffer.allocate(DZ_RING);
+        while (true) {
+            try {
+                boolean anyPaused = false;
+                for (Line l : lines) {
+                    anyPaused |= l.paused.get();
+                }
+                selector.select(anyPaused ? DZ_PAUSE_MS : 0);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Line l = (Line) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(l);
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        input(l, buffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        output(l);
+                    }
+                }
+                if (kicked.getAndSet(false) || anyPaused) {
+                    for (Line l : lines) {
+                        if (l.kick.getAndSet(false) || l.paused.get()) {
+                            service(l);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("DZ11 selector", e);
+            }
+        }
+    }
+
+    private void accept(Line l) throws IOException {
+        SocketChannel c = l.server.accept();
+        if (c == null) {
+            return;
+        }
+        if (l.channel != null) {
+            c.close();				// one terminal per line
+            return;
+        }
+        c.configureBlocking(false);
+        c.socket().setTcpNoDelay(true);
+        l.pending = null;
+        l.out.clear();
+        l.hangup = false;
+        l.key = c.register(selector, SelectionKey.OP_READ, l);
+        l.channel = c;
+        ++statConnects;
+        logger.info("DZ11 line " + l.number + " connected from "
+                + c.socket().getRemoteSocketAddress());
+    }
+
+    // input() - Read what fits in the line's input ring, and stop reading
+    // when it's full.
+    private void input(Line l, ByteBuffer buffer) throws IOException {
+        int room = l.in.remaining();
+        if (room == 0) {
+            l.key.interestOps(l.key.interestOps() & ~SelectionKey.OP_READ);
+            l.paused.set(true);
+            if (l.in.remaining() != 0) {
+                l.paused.set(false);		// drained meanwhile
+                l.key.interestOps(l.key.interestOps() | SelectionKey.OP_READ);
+            }
+            return;
+        }
+        buffer.clear();
+        buffer.limit(Math.min(room, buffer.capacity()));
+        int n;
+        try {
+            n = l.channel.read(buffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close(l);
+            return;
+        }
+        if (n > 0) {
+            l.in.offer(buffer.array(), 0, n);
+            Mux m = muxes[l.number / DZ_LINES];
+            scheduleRx(m, 0);
+        }
+    }
+
+    // output() - Write what the guest has sent, waiting for the socket to
+    // be writable if it won't take it all.
+    private void output(Line l) throws IOException {
+        try {
+            while (true) {
+                if ((l.pending == null) || !l.pending.hasRemaining()) {
+                    int n = l.out.poll(l.outBytes, 0, l.outBytes.length);
+                    if (n == 0) {
+                        l.pending = null;
+                        l.key.interestOps(l.key.interestOps()
+                                & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    l.pending = ByteBuffer.wrap(l.outBytes, 0, n);
+                }
+                l.channel.write(l.pending);
+                if (l.pending.hasRemaining()) {
+                    l.key.interestOps(l.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close(l);
+        }
+    }
+
+    // service() - Whatever the Qbus side asked for.
+    private void service(Line l) throws IOException {
+        if (l.channel == null) {
+            l.out.clear();			// nobody to send it to
+            return;
+        }
+        if (l.hangup) {
+            close(l);
+            return;
+        }
+        if (l.paused.get() && (l.in.remaining() >= (l.in.capacity() / 2))) {
+            l.paused.set(false);		// in case the wake up was missed
+        }
+        if (!l.paused.get()) {
+            l.key.interestOps(l.key.interestOps() | SelectionKey.OP_READ);
+        }
+        output(l);
+    }
+
+    private void close(Line l) {
+        SocketChannel c = l.channel;
+        l.channel = null;
+        l.hangup = false;
+        l.pending = null;
+        l.paused.set(false);
+        if (l.key != null) {
+            l.key.cancel();
+            l.key = null;
+        }
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+        l.out.clear();
+        logger.info("DZ11 line " + l.number + " disconnected");
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * DeviceOptions.java - Parse the options string handed to a device.
+ *
+ * Options are separated by commas, each one is either a flag or a
+ * key=value pair, e.g. "mmap,flush=periodic".  Numbers are decoded
+ * with Integer.decode(), so octal can be written with a leading zero.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DeviceOptions {
+
+    private final Map<String, String> options;
+
+    public DeviceOptions(String options) {
+        this.options = new HashMap<>();
+        if (options == null) {
+            return;
+        }
+        for (String option : options.split(",")) {
+            option = option.trim();
+            if (option.isEmpty()) {
+                continue;
+            }
+            int equals = option.indexOf('=');
+            if (equals < 0) {
+                this.options.put(option, "");
+            } else {
+                this.options.put(option.substring(0, equals).trim(),
+                        option.substring(equals + 1).trim());
+            }
+        }
+    }
+
+    public boolean has(String key) {
+        return options.containsKey(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = options.get(key);
+        if ((value == null) || value.isEmpty()) {
+            return defaultValue;
+        }
+        return value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.decode(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad number for option "
+                    + key + ": " + value);
+        }
+    }
+
+}
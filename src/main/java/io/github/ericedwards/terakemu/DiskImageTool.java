@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * DiskImageTool.java - Disk image maintenance from the command line.
+ *
+ *     overlay <base> <delta>   make an empty delta over a base image
+ *     info <delta>             show what a delta holds
+ *     commit <delta>           copy a delta's blocks into its base, then
+ *                              remove the delta
+ *     discard <delta>          remove a delta, dropping its changes
+ *     compress <in> <out>      copy an image into a compressed image
+ *     expand <in> <out>        copy an image into a plain, sparse file
+ *     create <out> <type>      make an empty compressed image, of a
+ *                              type MakeDisks knows
+ *     compress-tape <in> <out> copy a tape into a compressed tape
+ *     expand-tape <in> <out>   copy a compressed tape into a plain one
+ *
+ * Commit changes the base for every delta over it, so only do it when
+ * no other instance is using that base.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class DiskImageTool {
+
+    private static void usage() {
+        System.out.println("usage: DiskImageTool overlay <base> <delta>");
+        System.out.println("       DiskImageTool info <delta>");
+        System.out.println("       DiskImageTool commit <delta>");
+        System.out.println("       DiskImageTool discard <delta>");
+        System.out.println("       DiskImageTool compress <in> <out>");
+        System.out.println("       DiskImageTool expand <in> <out>");
+        System.out.println("       DiskImageTool create <out> <type>");
+        System.out.println("       DiskImageTool compress-tape <in> <out>");
+        System.out.println("       DiskImageTool expand-tape <in> <out>");
+    }
+
+    private static OverlayImage.Header header(String deltaPath)
+            throws IOException {
+        MediaImage delta = new FileImage(deltaPath, true);
+        try {
+            return OverlayImage.readHeader(delta);
+        } finally {
+            delta.close();
+        }
+    }
+
+    public static void overlay(String basePath, String deltaPath)
+            throws IOException {
+        if (new File(deltaPath).exists()) {
+            throw new IOException(deltaPath + " already exists");
+        }
+        new OverlayImage(basePath, deltaPath).close();
+    }
+
+    public static void info(String deltaPath) throws IOException {
+        OverlayImage.Header h = header(deltaPath);
+        OverlayImage overlay = new OverlayImage(h.basePath, deltaPath);
+        try {
+            long blocks = (h.length + h.blockBytes - 1) / h.blockBytes;
+            long used = 0;
+            for (long b = 0; b < blocks; ++b) {
+                if (overlay.isAllocated(b)) {
+                    ++used;
+                }
+            }
+            System.out.println("base " + h.basePath);
+            System.out.println(used + " of " + blocks + " blocks of "
+                    + h.blockBytes + " bytes changed");
+        } finally {
+            overlay.close();
+        }
+    }
+
+    // commit() - Write every changed block back to the base.  The delta
+    // is only removed once the base has been forced to disk.  The base is
+    // opened for what it is, so a compressed one stays compressed.
+    public static void commit(String deltaPath) throws IOException {
+        OverlayImage.Header h = header(deltaPath);
+        OverlayImage overlay = new OverlayImage(h.basePath, deltaPath);
+        try {
+            MediaImage base = MediaImage.open(h.basePath, new DeviceOptions(""));
+            try {
+                long blocks = (h.length + h.blockBytes - 1) / h.blockBytes;
+                for (long b = 0; b < blocks; ++b) {
+                    if (overlay.isAllocated(b)) {
+                        long position = b * h.blockBytes;
+                        int size = (int) Math.min(h.blockBytes, h.length - position);
+                        ByteBuffer buffer = ByteBuffer.allocate(size);
+                        overlay.read(position, buffer);
+                        buffer.flip();
+                        base.write(position, buffer);
+                    }
+                }
+                base.flush();
+            } finally {
+                base.close();
+            }
+        } finally {
+            overlay.close();
+        }
+        discard(deltaPath);
+    }
+
+    public static void discard(String deltaPath) throws IOException {
+        header(deltaPath);                  // make sure it's a delta
+        if (!new File(deltaPath).delete()) {
+            throw new IOException("can't remove " + deltaPath);
+        }
+    }
+
+    // compress() - Copy any image into a new compressed one.  Blocks of
+    // zeros are never written, so they stay sparse.
+    public static void compress(String in, String out) throws IOException {
+        MediaImage src = MediaImage.openReadOnly(in);
+        try {
+            CompressedImage.create(out, src.length(), CompressedImage.DEFAULT_BLOCK);
+            CompressedImage dst = new CompressedImage(out, false);
+            try {
+                copy(src, dst, CompressedImage.DEFAULT_BLOCK);
+                dst.flush();
+            } finally {
+                dst.close();
+            }
+        } finally {
+            src.close();
+        }
+    }
+
+    // expand() - Copy any image into a plain file, leaving holes where
+    // the image is zeros.
+    public static void expand(String in, String out) throws IOException {
+        MediaImage src = MediaImage.openReadOnly(in);
+        try {
+            RandomAccessFile f = new RandomAccessFile(out, "rw");
+            try {
+                f.setLength(0);
+                f.setLength(src.length());
+            } finally {
+                f.close();
+            }
+            MediaImage dst = new FileImage(out, false);
+            try {
+                copy(src, dst, CompressedImage.DEFAULT_BLOCK);
+                dst.flush();
+            } finally {
+                dst.close();
+            }
+        } finally {
+            src.close();
+        }
+    }
+
+    // copy() - Copy the blocks of src that aren't all zeros.
+    private static void copy(MediaImage src, MediaImage dst, int blockBytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(blockBytes);
+        long length = src.length();
+        for (long position = 0; position < length; position += blockBytes) {
+            buffer.clear();
+            buffer.limit((int) Math.min(blockBytes, length - position));
+            src.read(position, buffer);
+            buffer.flip();
+            boolean zero = true;
+            while (zero && buffer.hasRemaining()) {
+                zero = (buffer.get() == 0);
+            }
+            if (!zero) {
+                buffer.rewind();
+                dst.write(position, buffer);
+            }
+        }
+    }
+
+    public static void create(String out, String type) throws IOException {
+        CompressedImage.create(out, MakeDisks.size(type), CompressedImage.DEFAULT_BLOCK);
+    }
+
+    // compressTape() - Compress a plain tape image, with its record index.
+    public static void compressTape(String in, String out) throws IOException {
+        MediaImage src = new FileImage(in, true);
+        try {
+            CompressedTape.create(src, out);
+        } finally {
+            src.close();
+        }
+    }
+
+    public static void expandTape(String in, String out) throws IOException {
+        CompressedTape src = new CompressedTape(in);
+        try {
+            src.expand(out);
+        } finally {
+            src.close();
+        }
+    }
+
+    public static void main(String args[]) {
+        try {
+            if ((args.length == 3) && args[0].equals("overlay")) {
+                overlay(args[1], args[2]);
+            } else if ((args.length == 2) && args[0].equals("info")) {
+                info(args[1]);
+            } else if ((args.length == 2) && args[0].equals("commit")) {
+                commit(args[1]);
+            } else if ((args.length == 2) && args[0].equals("discard")) {
+                discard(args[1]);
+            } else if ((args.length == 3) && args[0].equals("compress")) {
+                compress(args[1], args[2]);
+            } else if ((args.length == 3) && args[0].equals("expand")) {
+                expand(args[1], args[2]);
+            } else if ((args.length == 3) && args[0].equals("create")) {
+                create(args[1], args[2]);
+            } else if ((args.length == 3) && args[0].equals("compress-tape")) {
+                compressTape(args[1], args[2]);
+            } else if ((args.length == 3) && args[0].equals("expand-tape")) {
+                expandTape(args[1], args[2]);
+            } else {
+                usage();
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * JournaledImage.java - Disk image with a write-ahead journal.
+ *
+ * Writes never go straight to the image.  Each one is widened to whole
+ * blocks and appended to the journal as a record,
+ *
+ *     magic, image offset, length, CRC-32 of the rest, data
+ *
+ * and kept in memory until a checkpoint copies it into the image, in
+ * block order, in the background.  Once the image has been forced to
+ * disk the journal is emptied.  Opening an image with a journal left
+ * behind replays every record up to the first one that is torn or
+ * doesn't check out, so after a crash the image holds the writes in
+ * the order they were made.
+ *
+ *     journal[=path]      the journal file, default the image path + .jnl
+ *     fsync=<ms>          force the journal this often, 0 after every write
+ *     checkpoint=<n>      checkpoint once this many blocks are waiting
+ *     checkpointms=<ms>   and at least this often
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class JournaledImage implements MediaImage {
+
+    static Logger logger = LoggerFactory.getLogger(JournaledImage.class);
+
+    private static final int MAGIC = 0x524a4b54;        // "TKJR"
+    private static final int RECORD_HEADER = 20;
+    private static final int BLOCK = 256;
+    private static final int DEFAULT_FSYNC_MS = 100;
+    private static final int DEFAULT_CHECKPOINT = 1024;
+    private static final int DEFAULT_CHECKPOINT_MS = 5000;
+
+    private static ScheduledExecutorService background = null;
+
+    private final MediaImage base;
+    private final String journalPath;
+    private RandomAccessFile journal;
+    private long journalEnd;
+    private boolean journalDirty;
+    private final Map<Long, byte[]> pending;        // block number to data
+    private final Object checkpointLock = new Object();
+    private boolean checkpointQueued;
+
+    private final int fsyncMs;
+    private final int checkpointBlocks;
+    private ScheduledFuture<?> fsyncTask;
+    private ScheduledFuture<?> checkpointTask;
+
+    public JournaledImage(MediaImage base, String journalPath,
+            DeviceOptions options) throws IOException {
+        this.base = base;
+        this.journalPath = journalPath;
+        fsyncMs = options.getInt("fsync", DEFAULT_FSYNC_MS);
+        checkpointBlocks = options.getInt("checkpoint", DEFAULT_CHECKPOINT);
+        int checkpointMs = options.getInt("checkpointms", DEFAULT_CHECKPOINT_MS);
+        if ((fsyncMs < 0) || (checkpointMs <= 0)) {
+            throw new IllegalArgumentException("bad journal options");
+        }
+        pending = new HashMap<>();
+        journal = new RandomAccessFile(journalPath, "rw");
+        try {
+            replay();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        if (fsyncMs > 0) {
+            fsyncTask = background().scheduleWithFixedDelay(() -> {
+                try {
+                    force();
+                } catch (IOException e) {
+                    logger.error("journal force failed", e);
+                }
+            }, fsyncMs, fsyncMs, TimeUnit.MILLISECONDS);
+        }
+        checkpointTask = background().scheduleWithFixedDelay(
+                this::checkpointQuietly, checkpointMs, checkpointMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService background() {
+        if (background == null) {
+            background = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread t = new Thread(r, "JournaledImage checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return background;
+    }
+
+    // replay() - Put whatever a previous run left in the journal into
+    // the image, then start the journal over.
+    private void replay() throws IOException {
+        FileChannel channel = journal.getChannel();
+        long size = channel.size();
+        long position = 0;
+        int records = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while ((position + RECORD_HEADER) <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int magic = header.getInt();
+            long offset = header.getLong();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if ((magic != MAGIC) || (length < 0)
+                    || ((position + RECORD_HEADER + length) > size)) {
+                break;                          // torn at the end
+            }
+            ByteBuffer data = ByteBuffer.allocate(length);
+            while (data.hasRemaining()) {
+                if (channel.read(data, position + RECORD_HEADER + data.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            if (crc(offset, data.array(), length) != crc) {
+                break;
+            }
+            data.flip();
+            base.write(offset, data);
+            position += RECORD_HEADER + length;
+            ++records;
+        }
+        if (records != 0) {
+            logger.info("replayed " + records + " journal records from "
+                    + journalPath);
+            base.flush();
+        }
+        channel.truncate(0);
+        channel.force(true);
+        journalEnd = 0;
+    }
+
+    private static int crc(long offset, byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer b = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        b.putLong(offset).putInt(length);
+        crc.update(b.array());
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // append() - Add a record for some whole blocks to the journal.
+    private void append(long block, byte[] data) throws IOException {
+        long offset = block * BLOCK;
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER + data.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(MAGIC).putLong(offset).putInt(data.length);
+        b.putInt(crc(offset, data, data.length));
+        b.put(data);
+        b.flip();
+        FileChannel channel = journal.getChannel();
+        while (b.hasRemaining()) {
+            journalEnd += channel.write(b, journalEnd);
+        }
+        journalDirty = true;
+    }
+
+    private synchronized void force() throws IOException {
+        if (journalDirty) {
+            journalDirty = false;
+            journal.getChannel().force(false);
+        }
+    }
+
+    @Override
+    public long length() throws IOException {
+        return base.length();
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int count = dst.remaining();
+        base.read(position, dst);
+        if (pending.isEmpty()) {
+            return;
+        }
+        // lay the blocks still waiting for a checkpoint over the image
+        for (long n = position / BLOCK; (n * BLOCK) < (position + count); ++n) {
+            byte[] data = pending.get(n);
+            if (data != null) {
+                long from = Math.max(position, n * BLOCK);
+                long to = Math.min(position + count, (n + 1) * BLOCK);
+                for (long i = from; i < to; ++i) {
+                    dst.put(start + (int) (i - position), data[(int) (i - (n * BLOCK))]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        boolean full;
+        synchronized (this) {
+            long first = position / BLOCK;
+            long end = position + src.remaining();
+            int blocks = (int) (((end + BLOCK - 1) / BLOCK) - first);
+            byte[] data = new byte[blocks * BLOCK];
+            ByteBuffer b = ByteBuffer.wrap(data);
+            if (((position % BLOCK) != 0) || ((end % BLOCK) != 0)) {
+                // widen to whole blocks with what's there now
+                b.limit((int) Math.min(data.length, base.length() - (first * BLOCK)));
+                read(first * BLOCK, b);
+                b.clear();
+            }
+            b.position((int) (position - (first * BLOCK)));
+            b.put(src);
+            append(first, data);
+            for (int i = 0; i < blocks; ++i) {
+                byte[] block = new byte[BLOCK];
+                System.arraycopy(data, i * BLOCK, block, 0, BLOCK);
+                pending.put(first + i, block);
+            }
+            if (fsyncMs == 0) {
+                force();
+            }
+            full = (pending.size() > checkpointBlocks) && !checkpointQueued;
+            if (full) {
+                checkpointQueued = true;
+            }
+        }
+        if (full) {
+            background().execute(this::checkpointQuietly);
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            logger.error("checkpoint of " + journalPath + " failed", e);
+        }
+    }
+
+    // checkpoint() - Copy the waiting blocks into the image.  New writes
+    // carry on meanwhile; blocks they replace stay waiting, and the
+    // journal is cut back to just those.
+    private void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            Map<Long, byte[]> snapshot;
+            synchronized (this) {
+                checkpointQueued = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                force();
+                snapshot = new HashMap<>(pending);
+            }
+            List<Long> blocks = new ArrayList<>(snapshot.keySet());
+            Collections.sort(blocks);
+            int i = 0;
+            while (i < blocks.size()) {
+                int j = i + 1;
+                while ((j < blocks.size())
+                        && (blocks.get(j) == (blocks.get(i) + (j - i)))) {
+                    ++j;
+                }
+                ByteBuffer run = ByteBuffer.allocate((j - i) * BLOCK);
+                for (int k = i; k < j; ++k) {
+                    run.put(snapshot.get(blocks.get(k)));
+                }
+                run.flip();
+                long offset = blocks.get(i) * BLOCK;
+                run.limit((int) Math.min(run.limit(), base.length() - offset));
+                base.write(offset, run);
+                i = j;
+            }
+            base.flush();
+            synchronized (this) {
+                for (Map.Entry<Long, byte[]> e : snapshot.entrySet()) {
+                    pending.remove(e.getKey(), e.getValue());
+                }
+                restartJournal();
+            }
+        }
+    }
+
+    // restartJournal() - Start the journal over with just the blocks
+    // still waiting.  The new journal is written beside the old one and
+    // renamed over it, so there is always one complete journal.
+    private void restartJournal() throws IOException {
+        if (pending.isEmpty()) {
+            journal.getChannel().truncate(0);
+            journal.getChannel().force(true);
+            journalEnd = 0;
+            journalDirty = false;
+            return;
+        }
+        File old = new File(journalPath);
+        File temp = new File(journalPath + ".new");
+        RandomAccessFile current = journal;
+        journal = new RandomAccessFile(temp, "rw");
+        journal.setLength(0);
+        journalEnd = 0;
+        for (Map.Entry<Long, byte[]> e : pending.entrySet()) {
+            append(e.getKey(), e.getValue());
+        }
+        journal.getChannel().force(true);
+        journalDirty = false;
+        current.close();
+        if (!temp.renameTo(old)) {
+            throw new IOException("can't replace " + journalPath);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkpoint();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fsyncTask != null) {
+            fsyncTask.cancel(false);
+        }
+        checkpointTask.cancel(false);
+        try {
+            checkpoint();
+        } finally {
+            synchronized (this) {
+                journal.close();
+                if (pending.isEmpty()) {
+                    new File(journalPath).delete();
+                }
+            }
+            base.close();
+        }
+    }
+
+}
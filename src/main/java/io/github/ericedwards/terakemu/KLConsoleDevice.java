@@ -22,10 +22,36 @@
 //
 // KLConsoleDevice.java - KL11/DL11 Console.
 //
+// Received characters, from the telnet socket or a terminal, go into
+// a FIFO.  The next one is put in the receiver data register rxdelay
+// instructions after the last was read, so the guest takes them as
+// fast as it reads them and none are lost; when the FIFO is full
+// whoever is sending waits.  Keys typed in a terminal window come one
+// at a time through receiveFromTerminal(int), which mustn't wait, so
+// they have a small typeahead ring of their own and are dropped when
+// it's full.
+//
+// Transmitted characters go into a ring that an output thread empties,
+// a batch at a time, to the socket and the terminals: when it has a full
+// batch, when nothing more has come for a moment, or after txflushms
+// milliseconds (default 10).  The CPU never waits on either; if the
+// ring is full the transmitter just stays not ready until there's room.
+//
+// Options: port=N listens for a telnet connection on port N, rxfifo=N
+// sizes the FIFO (default 4096), rxdelay=N the pacing (default 10).
+// "1" makes it the second console, at port 2001 and vectors 300/304.
+// terminal= picks the terminal (see SerialTerminal.create()), for the
+// first console the terakemu.terminal property or else swing, for the
+// second none.
+//
 package io.github.ericedwards.terakemu;
 
 import java.net.*;
 import java.io.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
 
@@ -33,11 +59,23 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
     private static final int DEFAULT_SIZE = 4;
     private static final int DEFAULT_TELNET_PORT = 2000;
     private static final int DEFAULT_VECTOR = 060;
+    private static final String TERMINAL_PROPERTY = "terakemu.terminal";
 
     private static final int READY = 0200;	// ready bit
     private static final int IE = 0100;		// interrupt enable bit
     private static final int DELAY = 100;	// delay until ready after send
     private static final int BRLEVEL = 4;	// br (interrupt) level
+    private static final int RX_FIFO = 4096;	// received characters held
+    private static final int RX_KEYS = 256;	// typeahead from a window
+    private static final int RX_DELAY = 10;	// between received characters
+    private static final int TX_RING = 4096;	// transmitted, not yet sent
+    private static final int TX_BATCH = 512;	// most sent at once
+    private static final int TX_FLUSH_MS = 10;	// longest a batch waits
+    private static final long TX_IDLE_NS = 200000;	// no more coming
+
+    // Event data.
+    private static final int EVENT_TX = 0;	// transmitter ready again
+    private static final int EVENT_RX = 1;	// next received character
 
     private QbusDeviceInfo info;
     private Qbus u;
@@ -47,10 +85,21 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
     private int tsr;
     private int tdr;
     private int port;
-    private SerialTerminal terminal;
-    private Socket socket;
+    private final List<SerialTerminal> terminals = new CopyOnWriteArrayList<>();
+    private SerialTerminal terminal;		// the one picked by the options
+    private volatile Socket socket;
     private int rvector;
     private int tvector;
+    private final ByteRing rxFifo;		// received, not yet in rdr
+    private final ByteRing rxKeys = new ByteRing(RX_KEYS);	// typed
+    private final AtomicBoolean rxScheduled = new AtomicBoolean();
+    private final Object rxSend = new Object();
+    private volatile boolean rxWaiting;	// a sender waits for room
+    private int rxDelay;
+    private final ByteRing txRing = new ByteRing(TX_RING);
+    private final Thread txThread;
+    private volatile boolean txWaiting;	// output thread is parked
+    private long txFlushNs;
 
     public KLConsoleDevice() {
         this(DEFAULT_BASE, DEFAULT_SIZE, "");
@@ -63,21 +112,38 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
         tsr = READY;
         tdr = 0;
         u = Qbus.instance();
-        if (options == "1") {
+        DeviceOptions opts = new DeviceOptions(options);
+        rxFifo = new ByteRing(opts.getInt("rxfifo", RX_FIFO));
+        rxDelay = opts.getInt("rxdelay", RX_DELAY);
+        txFlushNs = Math.max(1, opts.getInt("txflushms", TX_FLUSH_MS)) * 1000000L;
+        String kind;
+        if (opts.has("1")) {
             port = DEFAULT_TELNET_PORT + 1;
             rvector = 0300;
             tvector = 0304;
             info = new QbusDeviceInfo(this, base, size, "KL11 #2", false);
+            kind = "none";
         } else {
             port = DEFAULT_TELNET_PORT;
             rvector = DEFAULT_VECTOR;
             tvector = DEFAULT_VECTOR + 4;
             info = new QbusDeviceInfo(this, base, size, "KL11", false);
-            terminal = new TerminalGUI(this);
+            kind = System.getProperty(TERMINAL_PROPERTY, "swing");
         }
+        port = opts.getInt("port", port);
+        terminal = SerialTerminal.create(opts.get("terminal", kind), this);
+        if (terminal != null) {
+            terminals.add(terminal);
+        }
+        setDaemon(true);
+        txThread = new Thread(this::output, info.name + " output");
+        txThread.setDaemon(true);
+        txThread.start();
         u.registerDevice(info);
 
-        // this.start();
+        if (opts.has("port")) {
+            this.start();
+        }
     }
 
     public void reset() {
@@ -89,7 +155,11 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
             u.cancelInterrupt(this, BRLEVEL, tvector);
             u.cancelInterrupt(this, BRLEVEL, rvector);
             u.cancelEvents(this);
+            rxScheduled.set(false);
+            rxFifo.clear();
+            rxKeys.clear();
         }
+        wakeSender();
     }
 
     public short read(int addr) throws Trap {
@@ -100,9 +170,9 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
                 break;
             case 2:
                 data = rdr;
-                synchronized (this) {
-                    rsr &= ~READY;
-                    this.interrupt();		// wake up the receiver
+                rsr &= ~READY;
+                if (!rxKeys.isEmpty() || !rxFifo.isEmpty()) {
+                    scheduleReceive(rxDelay);
                 }
                 break;
             case 4:
@@ -140,18 +210,12 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
                 break;
             case 6:
                 if ((tsr & READY) != 0) {
-                    try {
-                        if (socket != null) {
-                            socket.getOutputStream().write(data & 0177);
-                        }
-                        if (terminal != null) {
-                            terminal.sendToTerminal(data & 0177);
-                        }
-                    } catch (Exception e) {
-                        // ignore any exceptions
+                    txRing.offer(data & 0177);	// ready means there's room
+                    if (txWaiting) {
+                        LockSupport.unpark(txThread);
                     }
                     tsr &= ~READY;
-                    u.scheduleEvent(this, DELAY, 0);
+                    u.scheduleEvent(this, DELAY, EVENT_TX);
                 }
                 break;
             default:
@@ -167,25 +231,156 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
     }
 
     public void eventService(int data) {
+        if (data == EVENT_RX) {
+            rxScheduled.set(false);
+            if ((rsr & READY) == 0) {
+                int r = rxKeys.poll();
+                if (r < 0) {
+                    r = rxFifo.poll();
+                }
+                if (r >= 0) {
+                    rdr = r;
+                    rsr |= READY;
+                    if ((rsr & IE) != 0) {
+                        u.scheduleInterrupt(this, BRLEVEL, rvector);
+                    }
+                    wakeSender();
+                }
+            }
+            return;
+        }
+        if (txRing.remaining() == 0) {
+            u.scheduleEvent(this, DELAY, EVENT_TX);	// output is behind
+            return;
+        }
         tsr |= READY;
         if ((tsr & IE) != 0) {
             u.scheduleInterrupt(this, BRLEVEL, tvector);
         }
     }
 
+    // scheduleReceive() - Have the next character put in rdr, unless
+    // that is already on its way.  Safe from any thread.
+    private void scheduleReceive(int delay) {
+        if (rxScheduled.compareAndSet(false, true)) {
+            u.scheduleEvent(this, delay, EVENT_RX);
+        }
+    }
+
+    // receive() - Queue received characters, waiting while the FIFO is
+    // full.  Senders take turns on the FIFO.
+    public void receive(byte[] b, int offset, int length) {
+        synchronized (rxSend) {
+            while (length > 0) {
+                int n = rxFifo.offer(b, offset, length);
+                offset += n;
+                length -= n;
+                if (n > 0) {
+                    scheduleReceive(0);		// not under rxFifo, see below
+                }
+                if (length > 0) {
+                    synchronized (rxFifo) {
+                        rxWaiting = true;
+                        try {
+                            if (rxFifo.remaining() == 0) {
+                                rxFifo.wait(10);
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        } finally {
+                            rxWaiting = false;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // wakeSender() - There's room in the FIFO again.  Called from
+    // eventService() under the Qbus lock, so receive() must never hold
+    // rxFifo while scheduling an event.
+    private void wakeSender() {
+        if (rxWaiting) {
+            synchronized (rxFifo) {
+                rxFifo.notifyAll();
+            }
+        }
+    }
+
     public void interruptService() {
     }
 
+    // receiveFromTerminal() - A key from a terminal window, on the event
+    // dispatch thread.  Dropped if the guest is that far behind.
     @Override
     public void receiveFromTerminal(int r) {
-        synchronized (this) {
-            if ((rsr & READY) == 0) {	// dump char if not rdy
-                rsr |= READY;			// set ready
-                rdr = r & 0377;			// mask to 8 bits
-                if ((rsr & IE) != 0) {	// make interrupt
-                    u.scheduleInterrupt(this, BRLEVEL, rvector);
+        synchronized (rxKeys) {			// only one thread may offer
+            if (!rxKeys.offer(r)) {
+                return;
+            }
+        }
+        scheduleReceive(0);
+    }
+
+    @Override
+    public void receiveFromTerminal(byte[] b, int offset, int length) {
+        receive(b, offset, length);
+    }
+
+    // getTerminal() - The terminal the options picked, null for none.
+    public SerialTerminal getTerminal() {
+        return terminal;
+    }
+
+    // addTerminal() - Another terminal to get the output, e.g. a
+    // ScriptedConsole.  Anything it sends goes to receiveFromTerminal().
+    public void addTerminal(SerialTerminal t) {
+        terminals.add(t);
+    }
+
+    public void removeTerminal(SerialTerminal t) {
+        terminals.remove(t);
+    }
+
+    // output() - The output thread, sending what's been transmitted.
+    private void output() {
+        byte[] batch = new byte[TX_BATCH];
+        while (true) {
+            txWaiting = true;
+            if (txRing.isEmpty()) {
+                LockSupport.parkNanos(this, txFlushNs);
+            }
+            txWaiting = false;
+            int n = txRing.poll(batch, 0, batch.length);
+            if (n == 0) {
+                continue;
+            }
+            long deadline = System.nanoTime() + txFlushNs;
+            while ((n < batch.length) && (System.nanoTime() < deadline)) {
+                LockSupport.parkNanos(TX_IDLE_NS);
+                int more = txRing.poll(batch, n, batch.length - n);
+                if (more == 0) {
+                    break;				// gone idle
                 }
+                n += more;
             }
+            send(batch, n);
+        }
+    }
+
+    // send() - One batch to the socket and the terminals.  A client that
+    // isn't reading holds up the output thread, not the CPU.
+    private void send(byte[] b, int length) {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.getOutputStream().write(b, 0, length);
+            } catch (IOException e) {
+                // ignore, the reader sees the socket closed
+            }
+        }
+        for (SerialTerminal t : terminals) {
+            t.sendToTerminal(b, 0, length);
         }
     }
 
@@ -196,28 +391,14 @@ public class KLConsoleDevice extends Thread implements QbusDevice, SerialHost {
                 socket = s.accept();
                 s.close();
                 try {
+                    InputStream in = socket.getInputStream();
+                    byte[] b = new byte[512];
                     while (true) {
-                        int r = socket.getInputStream().read();
-                        if (r == -1) {
+                        int n = in.read(b);
+                        if (n == -1) {
                             break;				// socket closed
                         }
-                        synchronized (this) {
-                            if ((rsr & READY) == 0) {	// dump char if not rdy
-                                rsr |= READY;			// set ready
-                                rdr = r & 0377;			// mask to 8 bits
-                                if ((rsr & IE) != 0) {	// make interrupt
-                                    u.scheduleInterrupt(this, BRLEVEL, rvector);
-                                }
-                            }
-                        }
-                        // sleep for a second or until data register is read
-                        // keeps us fom overunning the recevier data
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException e2) {
-                            // ignore the exception, probably the data
-                            // register got read
-                        }
+                        receive(b, 0, n);		// waits if the guest is behind
                     }
                     socket.close();
                 } catch (IOException e) {
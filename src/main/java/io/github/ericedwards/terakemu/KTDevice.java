@@ -33,47 +33,100 @@ class KTDevice implements QbusDevice {
 	private static final int KT_MMR0 = 0777572;
 	private static final int KT_MMR1 = 0777574;
 	private static final int KT_MMR2 = 0777576;
+	private static final int KT_MMR3 = 0772516;
+	private static final int KT_MMR3_SIZE = 1;
+	private static final int KT_PAGES = 8;				// registers per set
+	private static final int KT_SISD = 0772200;
+	private static final int KT_SDSD = 0772220;
+	private static final int KT_SISA = 0772240;
+	private static final int KT_SDSA = 0772260;
 	private static final int KT_KISD = 0772300;
-	private static final int KT_KISD_SIZE = 8;
+	private static final int KT_KDSD = 0772320;
 	private static final int KT_KISA = 0772340;
-	private static final int KT_KISA_SIZE = 8;
+	private static final int KT_KDSA = 0772360;
 	private static final int KT_UISD = 0777600;
-	private static final int KT_UISD_SIZE = 8;
+	private static final int KT_UDSD = 0777620;
 	private static final int KT_UISA = 0777640;
-	private static final int KT_UISA_SIZE = 8;
+	private static final int KT_UDSA = 0777660;
+
+	// MMR3 D space enables, one per mode.
+	private static final int KT_UDSPACE = 01;
+	private static final int KT_SDSPACE = 02;
+	private static final int KT_KDSPACE = 04;
 
 	private static KTDevice theInstance = null;
 
 	public int mmr0;
+	public int mmr1;
 	public int mmr2;
+	public int mmr3;
 	private int[] kisd;
 	private int[] kisa;
+	private int[] kdsd;
+	private int[] kdsa;
+	private int[] sisd;
+	private int[] sisa;
+	private int[] sdsd;
+	private int[] sdsa;
 	private int[] uisd;
 	private int[] uisa;
+	private int[] udsd;
+	private int[] udsa;
 
 	private Qbus unibus;
 	private CPUDevice cpu;
+	private AccessPath offPath;
+	private MappedPath kernelPath;
+	private MappedPath supervisorPath;
+	private MappedPath userPath;
+	private AccessPath[] modePaths;
 
 	private KTDevice() {
 		mmr0 = 0;
+		mmr1 = 0;
 		mmr2 = 0;
-		kisd = new int[KT_KISD_SIZE];
-		kisa = new int[KT_KISA_SIZE];
-		uisd = new int[KT_UISD_SIZE];
-		uisa = new int[KT_UISA_SIZE];
-		QbusDeviceInfo info;
+		mmr3 = 0;
+		kisd = new int[KT_PAGES];
+		kisa = new int[KT_PAGES];
+		kdsd = new int[KT_PAGES];
+		kdsa = new int[KT_PAGES];
+		sisd = new int[KT_PAGES];
+		sisa = new int[KT_PAGES];
+		sdsd = new int[KT_PAGES];
+		sdsa = new int[KT_PAGES];
+		uisd = new int[KT_PAGES];
+		uisa = new int[KT_PAGES];
+		udsd = new int[KT_PAGES];
+		udsa = new int[KT_PAGES];
 		unibus = Qbus.instance();
-		info = new QbusDeviceInfo(this, KT_MMR, KT_MMR_SIZE, "MMR", true);
-		unibus.registerDevice(info);
-		info = new QbusDeviceInfo(this, KT_KISD, KT_KISD_SIZE, "KISD", true);
-		unibus.registerDevice(info);
-		info = new QbusDeviceInfo(this, KT_KISA, KT_KISA_SIZE, "KISA", true);
-		unibus.registerDevice(info);
-		info = new QbusDeviceInfo(this, KT_UISD, KT_UISD_SIZE, "UISD", true);
-		unibus.registerDevice(info);
-		info = new QbusDeviceInfo(this, KT_UISA, KT_UISA_SIZE, "UISA", true);
-		unibus.registerDevice(info);
+		register(KT_MMR, KT_MMR_SIZE, "MMR");
+		register(KT_MMR3, KT_MMR3_SIZE, "MMR3");
+		register(KT_KISD, KT_PAGES, "KISD");
+		register(KT_KDSD, KT_PAGES, "KDSD");
+		register(KT_KISA, KT_PAGES, "KISA");
+		register(KT_KDSA, KT_PAGES, "KDSA");
+		register(KT_SISD, KT_PAGES, "SISD");
+		register(KT_SDSD, KT_PAGES, "SDSD");
+		register(KT_SISA, KT_PAGES, "SISA");
+		register(KT_SDSA, KT_PAGES, "SDSA");
+		register(KT_UISD, KT_PAGES, "UISD");
+		register(KT_UDSD, KT_PAGES, "UDSD");
+		register(KT_UISA, KT_PAGES, "UISA");
+		register(KT_UDSA, KT_PAGES, "UDSA");
 		cpu = CPUDevice.instance();
+		offPath = new OffPath();
+		kernelPath = new MappedPath(kisa, kisd, kdsa, kdsd, 0);
+		supervisorPath = new MappedPath(sisa, sisd, sdsa, sdsd, 040);
+		userPath = new MappedPath(uisa, uisd, udsa, udsd, 0140);
+		modePaths = new AccessPath[4];
+		modePaths[0] = kernelPath;
+		modePaths[1] = supervisorPath;
+		modePaths[2] = new InvalidPath(0100);
+		modePaths[3] = userPath;
+	}
+
+	private void register(int base, int size, String name) {
+		unibus.registerDevice(new QbusDeviceInfo(this, base, size, name, true));
 	}
 
 	public static final synchronized KTDevice instance() {
@@ -85,12 +138,30 @@ class KTDevice implements QbusDevice {
 
 	public void mmr2update(short addr) {
 		if ((mmr0 & 0160000) == 0) {
+			mmr1 = 0;
 			mmr2 = addr & 0177777;
 		}
 	}
 
+	// mmr1record() - Note a register auto-increment or decrement.  The
+	// low byte is filled first, the high byte holds a second change.
+
+	public final void mmr1record(int reg, int amount) {
+		if ((mmr0 & 0160000) == 0) {
+			int entry = ((amount & 037) << 3) | reg;
+			if ((mmr1 & 0377) == 0) {
+				mmr1 = entry;
+			} else {
+				mmr1 |= entry << 8;
+			}
+		}
+	}
+
 	public void reset() {
 		mmr0 = 0;
+		mmr3 = 0;
+		splitSpaces();
+		selectPath();
 	}
 
 	public short read(int addr) throws Trap {
@@ -100,26 +171,53 @@ class KTDevice implements QbusDevice {
 		case KT_KISD:
 			data = kisd[i];
 			break;
+		case KT_KDSD:
+			data = kdsd[i];
+			break;
 		case KT_KISA:
 			data = kisa[i];
 			break;
+		case KT_KDSA:
+			data = kdsa[i];
+			break;
+		case KT_SISD:
+			data = sisd[i];
+			break;
+		case KT_SDSD:
+			data = sdsd[i];
+			break;
+		case KT_SISA:
+			data = sisa[i];
+			break;
+		case KT_SDSA:
+			data = sdsa[i];
+			break;
 		case KT_UISD:
 			data = uisd[i];
 			break;
+		case KT_UDSD:
+			data = udsd[i];
+			break;
 		case KT_UISA:
 			data = uisa[i];
 			break;
+		case KT_UDSA:
+			data = udsa[i];
+			break;
 		default:
 			switch (addr & 0777777) {
 			case KT_MMR0:
 				data = mmr0;
 				break;
 			case KT_MMR1:
-				data = 0;
+				data = mmr1;
 				break;
 			case KT_MMR2:
 				data = mmr2;
 				break;
+			case KT_MMR3:
+				data = mmr3;
+				break;
 			default:
 				throw new Trap(Trap.UnibusTimeout);
 			}
@@ -133,31 +231,56 @@ class KTDevice implements QbusDevice {
 		int i = (addr & 016) >> 1;
 		switch (addr & 0777760) {
 		case KT_KISD:
-			kisd[i] &= ~(077516);		// mask r/o, and clear w-bit
-			kisd[i] |= (data & 077416); // writeable bits only
+			writePDR(kisd, i, data);
+			break;
+		case KT_KDSD:
+			writePDR(kdsd, i, data);
 			break;
 		case KT_KISA:
-			kisa[i] = data & 07777;		// PARs are 12 bit
-			kisd[i] &= ~(0100);			// clear w-bit
+			writePAR(kisa, kisd, i, data);
+			break;
+		case KT_KDSA:
+			writePAR(kdsa, kdsd, i, data);
+			break;
+		case KT_SISD:
+			writePDR(sisd, i, data);
+			break;
+		case KT_SDSD:
+			writePDR(sdsd, i, data);
+			break;
+		case KT_SISA:
+			writePAR(sisa, sisd, i, data);
+			break;
+		case KT_SDSA:
+			writePAR(sdsa, sdsd, i, data);
 			break;
 		case KT_UISD:
-			uisd[i] &= ~(077516);		// mask r/o, and clear w-bit
-			uisd[i] |= (data & 077416); // writeable bits only
+			writePDR(uisd, i, data);
+			break;
+		case KT_UDSD:
+			writePDR(udsd, i, data);
 			break;
 		case KT_UISA:
-			uisa[i] = data & 07777;		// PARs are 12 bit
-			uisd[i] &= ~(0100);			// clear w-bit
+			writePAR(uisa, uisd, i, data);
+			break;
+		case KT_UDSA:
+			writePAR(udsa, udsd, i, data);
 			break;
 		default:
 			switch (addr & 0777777) {
 			case KT_MMR0:
 				mmr0 &= ~(0160157);			// mask r/o bits
 				mmr0 |= (data & 0160157);	// writeable bits only
+				selectPath();
 				break;
 			case KT_MMR1:
 			case KT_MMR2:
 				// don't accept writes, but no error
 				break;
+			case KT_MMR3:
+				mmr3 = data & (KT_UDSPACE | KT_SDSPACE | KT_KDSPACE);
+				splitSpaces();
+				break;
 			default:
 				throw new Trap(Trap.UnibusTimeout);
 			}
@@ -165,6 +288,25 @@ class KTDevice implements QbusDevice {
 		}
 	}
 
+	private void writePDR(int[] pdr, int i, int data) {
+		pdr[i] &= ~(077516);		// mask r/o, and clear w-bit
+		pdr[i] |= (data & 077416);	// writeable bits only
+	}
+
+	private void writePAR(int[] par, int[] pdr, int i, int data) {
+		par[i] = data & 07777;		// PARs are 12 bit
+		pdr[i] &= ~(0100);			// clear w-bit
+	}
+
+	// splitSpaces() - Follow the MMR3 D space enables.  A mode without
+	// D space has its data references use the I space registers.
+
+	private void splitSpaces() {
+		kernelPath.splitSpace((mmr3 & KT_KDSPACE) != 0);
+		supervisorPath.splitSpace((mmr3 & KT_SDSPACE) != 0);
+		userPath.splitSpace((mmr3 & KT_UDSPACE) != 0);
+	}
+
 	public void writebyte(int addr, byte data) throws Trap {
 		int t = ((int) read(addr & 0777776)) & 0177777;
 		int s = ((int) data) & 0377;
@@ -186,131 +328,117 @@ class KTDevice implements QbusDevice {
 		// do nothing
 	}
 
-	public final int map(short shortAddr, boolean isWrite,
-	boolean forceKernel, boolean forcePrevious) throws Trap {
-		int addr = shortAddr & 0177777;
-		int caddr;
-		int mode;
-		int pdr[];
+	// selectPath() - Point the CPU at the access path for the current
+	// mode.  Called whenever MMR0 or the PSW mode bits change, so the
+	// ordinary references made through cpu.path never test the mode.
 
-		// First, check to see if the mmu is off, if so do
-		// the simple mapping.  Adjust I/O page accesses to map
-		// to the proper 18-bit UNIBUS address.
+	public final void selectPath() {
+		cpu.path = pathFor((cpu.psw & 0140000) >> 14);
+	}
 
+	private final AccessPath pathFor(int mode) {
 		if ((mmr0 & 1) == 0) {
-			if (addr >= 0160000) {
-				addr += 0600000;
-			}
-			return addr;
-		} else {
-
-			// MMU is on. Proceed with mapping.
-
-			int index = (addr >> 13) & 07;
-			int block = (addr >> 6) & 0177;
+			return offPath;
+		}
+		return modePaths[mode];
+	}
 
-			// handle forced access to kernel or previous
+	// relocate() - Do the mapping for one mode's PAR/PDR set.  This
+	// is the common part of every mapped access path, so the abort
+	// behavior is the same no matter how the access got here.
 
-			if (forceKernel) {
-				mode = 0;
-			} else if (!forcePrevious) {
-				mode = (cpu.psw & 0140000) >> 14;
-			} else {
-				mode = (cpu.psw & 030000) >> 12;
-			}
+	private final int relocate(int addr, boolean isWrite, int[] par,
+	int[] pdr, int mode) throws Trap {
+		int index = (addr >> 13) & 07;
+		int block = (addr >> 6) & 0177;
+		int caddr = par[index] << 6;
 
-			// check the mode and select the proper
-			// memory management info
+		// check the length, this is the hardest case
 
-			switch (mode) {
-			case 0:
-				caddr = kisa[index] << 6;
-				pdr = kisd;
-				mode = 0;
-				break;
-			case 3:
-				caddr = uisa[index] << 6;
-				pdr = uisd;
-				mode = 0140;
-				break;
-			default:
-				mode <<= 5;
+		if ((pdr[index] & 010) != 0) {				// downward expanding
+			if (block < ((pdr[index] >> 8) & 0177)) {
 				if ((mmr0 & 0160000) == 0) {
-					mmr0 &= ~(0156);
-					mmr0 |= 0100000;
+					mmr0 &= ~(0176);
+					mmr0 |= 040000;
 					mmr0 |= mode;
 					mmr0 |= index << 1;
-				}
-				throw new Trap(Trap.SegmentationError);
-			}
-
-			// check the length, this is the hardest case
-
-			if ((pdr[index] & 010) != 0) {				// downward expanding
-				if (block < ((pdr[index] >> 8) & 0177)) {
-					if ((mmr0 & 0160000) == 0) {
-						mmr0 &= ~(0156);
-						mmr0 |= 040000;
-						mmr0 |= mode;
-						mmr0 |= index << 1;
-						if ((pdr[index] & 2) == 0) {
-							mmr0 |= 0100000;
-						}
-						if (isWrite && ((pdr[index] & 4) == 0)) {
-							mmr0 |= 020000;
-						}
+					if ((pdr[index] & 2) == 0) {
+						mmr0 |= 0100000;
 					}
-					throw new Trap(Trap.SegmentationError);
-				}
-			} else {									// upward expanding
-				if (block > ((pdr[index] >> 8) & 0177)) {
-					if ((mmr0 & 0160000) == 0) {
-						mmr0 &= ~(0156);
-						mmr0 |= 040000;
-						mmr0 |= mode;
-						mmr0 |= index << 1;
-						if ((pdr[index] & 2) == 0) {
-							mmr0 |= 0100000;
-						}
-						if (isWrite && ((pdr[index] & 4) == 0)) {
-							mmr0 |= 020000;
-						}
+					if (isWrite && ((pdr[index] & 4) == 0)) {
+						mmr0 |= 020000;
 					}
-					throw new Trap(Trap.SegmentationError);
 				}
+				throw new Trap(Trap.SegmentationError);
 			}
-
-			// now check if the segment is resident
-
-			if ((pdr[index] & 2) == 0) {
+		} else {									// upward expanding
+			if (block > ((pdr[index] >> 8) & 0177)) {
 				if ((mmr0 & 0160000) == 0) {
-					mmr0 &= ~(0156);
-					mmr0 |= 0100000;
+					mmr0 &= ~(0176);
+					mmr0 |= 040000;
 					mmr0 |= mode;
 					mmr0 |= index << 1;
+					if ((pdr[index] & 2) == 0) {
+						mmr0 |= 0100000;
+					}
 					if (isWrite && ((pdr[index] & 4) == 0)) {
 						mmr0 |= 020000;
 					}
 				}
 				throw new Trap(Trap.SegmentationError);
 			}
+		}
 
-			// if a write, make sure it's ok
+		// now check if the segment is resident
 
-			if (isWrite) {
-				if ((pdr[index] & 4) == 0) {
-					if ((mmr0 & 0160000) == 0) {
-						mmr0 &= ~(0156);
-						mmr0 |= 020000;
-						mmr0 |= mode;
-						mmr0 |= index << 1;
-					}
-					throw new Trap(Trap.SegmentationError);
+		if ((pdr[index] & 2) == 0) {
+			if ((mmr0 & 0160000) == 0) {
+				mmr0 &= ~(0176);
+				mmr0 |= 0100000;
+				mmr0 |= mode;
+				mmr0 |= index << 1;
+				if (isWrite && ((pdr[index] & 4) == 0)) {
+					mmr0 |= 020000;
 				}
-				pdr[index] |= 0100;
 			}
+			throw new Trap(Trap.SegmentationError);
+		}
+
+		// if a write, make sure it's ok
 
-			return caddr + (addr & 017777);
+		if (isWrite) {
+			if ((pdr[index] & 4) == 0) {
+				if ((mmr0 & 0160000) == 0) {
+					mmr0 &= ~(0176);
+					mmr0 |= 020000;
+					mmr0 |= mode;
+					mmr0 |= index << 1;
+				}
+				throw new Trap(Trap.SegmentationError);
+			}
+			pdr[index] |= 0100;
+		}
+
+		return caddr + (addr & 017777);
+	}
+
+	// map() - General D space mapping, used for the forced kernel
+	// references.  Current mode references go through cpu.path.
+
+	public final int map(short shortAddr, boolean isWrite,
+	boolean forceKernel, boolean forcePrevious) throws Trap {
+		AccessPath p;
+		if (forceKernel) {
+			p = pathFor(0);
+		} else if (!forcePrevious) {
+			p = pathFor((cpu.psw & 0140000) >> 14);
+		} else {
+			p = pathFor((cpu.psw & 030000) >> 12);
+		}
+		if (isWrite) {
+			return p.mapWrite(shortAddr);
+		} else {
+			return p.mapRead(shortAddr);
 		}
 	}
 
@@ -339,18 +467,192 @@ class KTDevice implements QbusDevice {
 		unibus.writebyte(map(addr, true, false, false), data);
 	}
 
-	public final short logicalReadPrevious(short addr) throws Trap {
+	// Previous mode references for MFPI/MTPI (I space) and
+	// MFPD/MTPD (D space).
+
+	public final short logicalReadPrevious(short addr, boolean dSpace)
+	throws Trap {
 		if ((addr & 1) != 0) throw new Trap(Trap.OddAddress);
-		return unibus.read(map(addr, false, false, true));
+		AccessPath p = pathFor((cpu.psw & 030000) >> 12);
+		if (dSpace) {
+			return unibus.read(p.mapRead(addr));
+		} else {
+			return unibus.read(p.mapFetch(addr));
+		}
 	}
 
-	public final void logicalWritePrevious(short addr, short data) throws Trap {
+	public final void logicalWritePrevious(short addr, short data,
+	boolean dSpace) throws Trap {
 		if ((addr & 1) != 0) throw new Trap(Trap.OddAddress);
-		unibus.write(map(addr, true, false, true), data);
+		AccessPath p = pathFor((cpu.psw & 030000) >> 12);
+		if (dSpace) {
+			unibus.write(p.mapWrite(addr), data);
+		} else {
+			unibus.write(p.mapStore(addr), data);
+		}
 	}
 
 	public final short logicalReadKernel(short addr) throws Trap {
 		if ((addr & 1) != 0) throw new Trap(Trap.OddAddress);
 		return unibus.read(map(addr, false, true, false));
 	}
+
+	// AccessPath - One translation regime (MMU off, or one mode).  The
+	// logical references are written once here, the subclasses only
+	// supply the address mapping with no flags to test.  Data references
+	// use D space, fetch() and the previous mode I space references use
+	// I space.
+
+	abstract class AccessPath {
+
+		abstract int mapRead(short addr) throws Trap;
+
+		abstract int mapWrite(short addr) throws Trap;
+
+		abstract int mapFetch(short addr) throws Trap;
+
+		abstract int mapStore(short addr) throws Trap;
+
+		final short read(short addr) throws Trap {
+			if ((addr & 1) != 0) throw new Trap(Trap.OddAddress);
+			return unibus.read(mapRead(addr));
+		}
+
+		final void write(short addr, short data) throws Trap {
+			if ((addr & 1) != 0) throw new Trap(Trap.OddAddress);
+			unibus.write(mapWrite(addr), data);
+		}
+
+		final byte readByte(short addr) throws Trap {
+			short data = unibus.read(mapRead((short)(addr & 0177776)));
+			if ((addr & 1) == 0) {
+				return((byte) (data & 0377));
+			} else {
+				return((byte) ((data >> 8) & 0377));
+			}
+		}
+
+		final void writeByte(short addr, byte data) throws Trap {
+			unibus.writebyte(mapWrite(addr), data);
+		}
+
+		final short fetch(short addr) throws Trap {
+			if ((addr & 1) != 0) throw new Trap(Trap.OddAddress);
+			return unibus.read(mapFetch(addr));
+		}
+	}
+
+	// MMU is off, adjust I/O page accesses to map to the
+	// proper 18-bit UNIBUS address.
+
+	private final class OffPath extends AccessPath {
+
+		final int mapRead(short shortAddr) {
+			int addr = shortAddr & 0177777;
+			if (addr >= 0160000) {
+				addr += 0600000;
+			}
+			return addr;
+		}
+
+		final int mapWrite(short shortAddr) {
+			return mapRead(shortAddr);
+		}
+
+		final int mapFetch(short shortAddr) {
+			return mapRead(shortAddr);
+		}
+
+		final int mapStore(short shortAddr) {
+			return mapRead(shortAddr);
+		}
+	}
+
+	// MMU is on, map through one mode's PAR/PDR sets.  Without D space
+	// the data references are pointed at the I space registers, so a
+	// program that doesn't split I and D pays nothing for it.
+
+	private final class MappedPath extends AccessPath {
+
+		private final int[] ipar;
+		private final int[] ipdr;
+		private final int[] dparSplit;
+		private final int[] dpdrSplit;
+		private final int imode;		// mode bits for MMR0
+		private int[] dpar;
+		private int[] dpdr;
+		private int dmode;				// mode and D space bits for MMR0
+
+		MappedPath(int[] ipar, int[] ipdr, int[] dpar, int[] dpdr, int mode) {
+			this.ipar = ipar;
+			this.ipdr = ipdr;
+			this.dparSplit = dpar;
+			this.dpdrSplit = dpdr;
+			this.imode = mode;
+			splitSpace(false);
+		}
+
+		final void splitSpace(boolean split) {
+			if (split) {
+				dpar = dparSplit;
+				dpdr = dpdrSplit;
+				dmode = imode | 020;
+			} else {
+				dpar = ipar;
+				dpdr = ipdr;
+				dmode = imode;
+			}
+		}
+
+		final int mapRead(short addr) throws Trap {
+			return relocate(addr & 0177777, false, dpar, dpdr, dmode);
+		}
+
+		final int mapWrite(short addr) throws Trap {
+			return relocate(addr & 0177777, true, dpar, dpdr, dmode);
+		}
+
+		final int mapFetch(short addr) throws Trap {
+			return relocate(addr & 0177777, false, ipar, ipdr, imode);
+		}
+
+		final int mapStore(short addr) throws Trap {
+			return relocate(addr & 0177777, true, ipar, ipdr, imode);
+		}
+	}
+
+	// MMU is on and the mode has no mapping registers, every
+	// reference aborts.
+
+	private final class InvalidPath extends AccessPath {
+
+		private final int mode;			// mode bits for MMR0
+
+		InvalidPath(int mode) {
+			this.mode = mode;
+		}
+
+		final int mapRead(short addr) throws Trap {
+			int index = (addr >> 13) & 07;
+			if ((mmr0 & 0160000) == 0) {
+				mmr0 &= ~(0176);
+				mmr0 |= 0100000;
+				mmr0 |= mode;
+				mmr0 |= index << 1;
+			}
+			throw new Trap(Trap.SegmentationError);
+		}
+
+		final int mapWrite(short addr) throws Trap {
+			return mapRead(addr);
+		}
+
+		final int mapFetch(short addr) throws Trap {
+			return mapRead(addr);
+		}
+
+		final int mapStore(short addr) throws Trap {
+			return mapRead(addr);
+		}
+	}
 }
@@ -0,0 +1,859 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * MSCPDiskDevice - RQDX3/UDA50 style MSCP Disk Simulation.
+ *
+ * The port is the usual pair of registers, IP and SA, brought up with
+ * the four step SA handshake that gives it the vector and where the
+ * communication area is.  After that the host puts command packets on
+ * the command ring and reads IP to have them looked at, and takes end
+ * messages off the response ring.
+ *
+ * Any number of commands can be outstanding, up to the queue option
+ * (default 32).  Transfers run on a pool of host I/O threads (threads,
+ * default 4): a write's data is fetched from memory when the command
+ * is taken, a read's data is stored when the I/O comes back, both on
+ * the CPU thread through the Qbus event queue, so commands finish in
+ * whatever order the host I/O does.  Images are any whole number of
+ * 512 byte blocks, the unit size the host sees is the image size.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MSCPDiskDevice implements QbusDevice, Flushable, DeviceStatistics {
+
+    static Logger logger = LoggerFactory.getLogger(MSCPDiskDevice.class);
+
+    // Qbus interface definitions.
+    private static final int MS_BASE = 0772150;		// default address
+    private static final int MS_SIZE = 2;		// IP and SA
+    private static final int MS_BRLEVEL = 5;		// default bus request level
+    private static final int MS_UNITS = 4;		// default units
+    private static final int MS_QUEUE = 32;		// commands outstanding
+    private static final int MS_THREADS = 4;		// host I/O threads
+    private static final int MS_BLOCK = 512;
+    private static final int MS_MAX_TRANSFER = 0100000000;	// 16M bytes
+    private static final int MS_PACKET = 64;		// largest packet text
+    private static final int MS_RETRY = 200;		// look for a response slot again
+
+    // Event data, the low bits; the rest is the port generation.
+    private static final int MS_EVENT_POLL = 0;		// look at the command ring
+    private static final int MS_EVENT_DONE = 1;		// host I/O has finished
+
+    // SA register definitions.
+    private static final int SA_ER = 0100000;		// fatal error
+    private static final int SA_S1 = 004000;
+    private static final int SA_S2 = 010000;
+    private static final int SA_S3 = 020000;
+    private static final int SA_S4 = 040000;
+    private static final int SA_S1C_QB = 001000;	// 22 bit Qbus
+    private static final int SA_S1H_VL = 0100000;	// host's step 1 is valid
+    private static final int SA_S1H_IE = 0200;		// interrupt during init
+    private static final int SA_S3H_PP = 0100000;	// purge and poll test
+    private static final int SA_S4H_GO = 01;
+    private static final int SA_S4C_MODEL = 19 << 4;	// RQDX3
+    private static final int SA_S4C_VERSION = 3;
+
+    // Port states.
+    private static final int PORT_STEP1 = 1;		// waiting for the host
+    private static final int PORT_STEP2 = 2;
+    private static final int PORT_STEP3 = 3;
+    private static final int PORT_PURGE = 5;		// waiting for SA to be 0
+    private static final int PORT_STEP4 = 4;
+    private static final int PORT_RUNNING = 6;
+    private static final int PORT_ERROR = 7;
+
+    // Port error codes, in SA.
+    private static final int PE_PACKET_READ = 1;
+    private static final int PE_PACKET_WRITE = 2;
+    private static final int PE_DESCRIPTOR = 3;
+
+    // Ring descriptors and the communication area.
+    private static final int DESC_OWN = 0100000;	// in the high word
+    private static final int DESC_FLAG = 040000;
+    private static final int DESC_ADDR = 077;
+    private static final int COMM_CMD_INT = -4;
+    private static final int COMM_RSP_INT = -2;
+
+    // Opcodes.
+    private static final int OP_ABO = 1;		// abort
+    private static final int OP_GCS = 2;		// get command status
+    private static final int OP_GUS = 3;		// get unit status
+    private static final int OP_SCC = 4;		// set controller characteristics
+    private static final int OP_AVL = 8;		// available
+    private static final int OP_ONL = 9;		// online
+    private static final int OP_SUC = 10;		// set unit characteristics
+    private static final int OP_ACC = 16;		// access
+    private static final int OP_ERS = 18;		// erase
+    private static final int OP_FLU = 19;		// flush
+    private static final int OP_CMP = 32;		// compare host data
+    private static final int OP_RD = 33;
+    private static final int OP_WR = 34;
+    private static final int OP_END = 0200;		// end message flag
+
+    // Status codes, with subcodes.
+    private static final int ST_SUC = 0;
+    private static final int ST_CMD = 1;		// invalid command, offset << 8
+    private static final int ST_OFL = 3;		// unit offline
+    private static final int ST_AVL = 4;		// unit available
+    private static final int ST_WPR = 6;		// write protected
+    private static final int ST_CMP = 7;		// compare error
+    private static final int ST_DAT = 8;		// data error
+    private static final int ST_HST = 9;		// host buffer access error
+    private static final int ST_DRV = 11;		// drive error
+    private static final int SB_OFL_NV = 1 << 5;	// no volume
+    private static final int SB_WPR_HW = 0400 << 5;	// hardware write protect
+    private static final int SB_HST_NXM = 3 << 5;	// non-existent memory
+
+    // Unit flags.
+    private static final int UF_WPH = 020000;		// hardware write protect
+
+    // Command packet offsets, in bytes.
+    private static final int P_CRF = 0;			// command reference number
+    private static final int P_UNIT = 4;
+    private static final int P_OPCD = 8;
+    private static final int P_FLAGS = 9;
+    private static final int P_MOD = 10;
+    private static final int P_STS = 10;		// in end messages
+    private static final int P_BCNT = 12;
+    private static final int P_BUFL = 16;
+    private static final int P_BUFH = 18;
+    private static final int P_LBN = 28;
+
+    // What a unit says it is.  The geometry only goes into unit status,
+    // the size is always the image's.
+    private static class DriveType {
+        final String name;
+        final int mediaId;
+        final int model;
+        final int trackSize;			// sectors per track
+        final int groupSize;			// tracks per group
+        final int cylinderSize;			// groups per cylinder
+        final int rctSize;
+
+        DriveType(String name, int mediaId, int model, int trackSize,
+                int groupSize, int cylinderSize, int rctSize) {
+            this.name = name;
+            this.mediaId = mediaId;
+            this.model = model;
+            this.trackSize = trackSize;
+            this.groupSize = groupSize;
+            this.cylinderSize = cylinderSize;
+            this.rctSize = rctSize;
+        }
+    }
+
+    private static final DriveType[] TYPES = {
+        new DriveType("rd53", 0x25644035, 53, 17, 8, 1, 5),
+        new DriveType("rd54", 0x25644036, 54, 17, 15, 1, 7),
+        new DriveType("ra60", 0x2564103c, 60, 42, 6, 1, 1008),
+        new DriveType("ra81", 0x25641051, 81, 51, 14, 1, 2856),
+        new DriveType("ra82", 0x25641052, 82, 57, 15, 1, 3420)
+    };
+
+    // A unit, its image and how the host sees it.
+    private static class Unit {
+        MediaImage image;			// null if no disk
+        boolean concurrent;			// image takes parallel I/O
+        boolean readOnly;
+        boolean online;
+        long blocks;
+        DriveType type;
+        final AtomicInteger pending = new AtomicInteger();
+    }
+
+    // A command taken off the ring, and its end message.
+    private static class Command {
+        int generation;
+        int connection;
+        ByteBuffer packet;			// the command text
+        int opcode;
+        int unit;
+        int byteCount;
+        int busAddr;
+        long lbn;
+        ByteBuffer data;			// transfer data, if any
+        int status;
+        int moved;				// bytes transferred
+    }
+
+    private final QbusDeviceInfo info;
+    private final Qbus unibus;
+    private final Unit[] units;
+    private final int queueLimit;
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Command> finished = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+
+    // Port state.
+    private int state;
+    private int sa;
+    private int step1;				// what the host wrote in step 1
+    private int vector;
+    private int ringBase;			// the response ring
+    private int commandRing;
+    private int commandLength;			// ring entries
+    private int responseLength;
+    private int commandIndex;
+    private int responseIndex;
+    private int credits;			// to give back to the host
+    private int outstanding;			// commands taken, not ended
+    private boolean retryScheduled;		// a look for a response slot
+    private int generation;			// bumped by each init
+
+    private long statCommands;
+    private long statReads;
+    private long statWrites;
+    private long statBytes;
+    private int statMaxQueue;
+
+    public MSCPDiskDevice() {
+        this(MS_BASE, MS_SIZE, "");
+    }
+
+    public MSCPDiskDevice(int base, int size, String options) {
+        DeviceOptions opts = new DeviceOptions(options);
+        info = new QbusDeviceInfo(this, base, size, "MSCP", false);
+        units = new Unit[opts.getInt("units", MS_UNITS)];
+        for (int i = 0; i < units.length; ++i) {
+            units[i] = new Unit();
+        }
+        queueLimit = Math.max(1, opts.getInt("queue", MS_QUEUE));
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(
+                Math.max(1, opts.getInt("threads", MS_THREADS)), (r) -> {
+                    Thread t = new Thread(r, "MSCP I/O " + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        unibus = Qbus.instance();
+        unibus.registerDevice(info);
+        init();
+    }
+
+    public void assign(int unit, String path) throws IOException {
+        assign(unit, path, "");
+    }
+
+    // assign() - Attach an image to a unit.  The type option (rd53,
+    // rd54, ra60, ra81 or ra82, default ra81) picks what the unit says
+    // it is; ro write protects it.  Other options are the image's, see
+    // MediaImage.open().
+    public void assign(int unit, String path, String options) throws IOException {
+        if ((unit < 0) || (unit >= units.length)) {
+            throw new IOException("no MSCP unit " + unit);
+        }
+        DeviceOptions opts = new DeviceOptions(options);
+        DriveType type = null;
+        String name = opts.get("type", "ra81");
+        for (DriveType t : TYPES) {
+            if (t.name.equals(name)) {
+                type = t;
+            }
+        }
+        if (type == null) {
+            throw new IOException("unknown MSCP drive type " + name);
+        }
+        detach(unit);
+        MediaImage image = MediaImage.open(path, opts);
+        long length = image.length();
+        if ((length == 0) || ((length % MS_BLOCK) != 0)) {
+            image.close();
+            throw new IOException(path + " isn't a whole number of blocks");
+        }
+        Unit u = units[unit];
+        synchronized (u) {
+            u.type = type;
+            u.blocks = length / MS_BLOCK;
+            u.readOnly = opts.has("ro");
+            u.concurrent = (image instanceof FileImage) || (image instanceof MappedImage);
+            u.online = false;
+            u.image = image;
+        }
+    }
+
+    // detach() - Wait for the unit's I/O, then flush and close its image.
+    public void detach(int unit) throws IOException {
+        if ((unit < 0) || (unit >= units.length)) {
+            throw new IOException("no MSCP unit " + unit);
+        }
+        Unit u = units[unit];
+        MediaImage image;
+        synchronized (u) {
+            image = u.image;
+            u.image = null;
+            u.online = false;
+        }
+        if (image != null) {
+            while (u.pending.get() != 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+            }
+            try {
+                image.flush();
+            } finally {
+                image.close();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Unit u : units) {
+            MediaImage image = u.image;
+            if (image != null) {
+                image.flush();
+            }
+        }
+    }
+
+    @Override
+    public String getStatistics() {
+        return "commands " + statCommands + " reads " + statReads
+                + " writes " + statWrites + " bytes " + statBytes
+                + " most outstanding " + statMaxQueue;
+    }
+
+    // init() - Back to step 1 of the handshake, dropping every command.
+    private void init() {
+        ++generation;
+        finished.clear();
+        responses.clear();
+        outstanding = 0;
+        credits = 0;
+        retryScheduled = false;
+        state = PORT_STEP1;
+        sa = SA_S1 | SA_S1C_QB;
+    }
+
+    @Override
+    public void reset() {
+        init();
+    }
+
+    // read() - Reading IP has the port poll the command ring.
+    @Override
+    public short read(int addr) throws Trap {
+        switch (addr - info.base) {
+            case 0:
+                if (state == PORT_RUNNING) {
+                    unibus.scheduleEvent(this, 0, event(generation, MS_EVENT_POLL));
+                }
+                return 0;
+            case 2:
+                return (short) sa;
+            default:
+                throw new Trap(Trap.UnibusTimeout);
+        }
+    }
+
+    // write() - Writing IP starts the port over, writing SA is the host's
+    // half of the handshake.
+    @Override
+    public void write(int addr, short shortData) throws Trap {
+        int data = ((int) shortData) & 0177777;
+        switch (addr - info.base) {
+            case 0:
+                init();
+                break;
+            case 2:
+                handshake(data);
+                break;
+            default:
+                throw new Trap(Trap.UnibusTimeout);
+        }
+    }
+
+    @Override
+    public void writebyte(int addr, byte data) throws Trap {
+        throw new Trap(Trap.Unimplemented);
+    }
+
+    // handshake() - The steps of port initialization.
+    private void handshake(int data) {
+        switch (state) {
+            case PORT_STEP1:
+                if ((data & SA_S1H_VL) == 0) {
+                    return;
+                }
+                step1 = data;
+                commandLength = 1 << ((data >> 11) & 7);
+                responseLength = 1 << ((data >> 8) & 7);
+                vector = (data & 0177) << 2;
+                state = PORT_STEP2;
+                sa = SA_S2 | ((step1 >> 8) & 0377);
+                break;
+            case PORT_STEP2:
+                ringBase = data & 0177776;
+                state = PORT_STEP3;
+                sa = SA_S3 | (step1 & 0377);
+                break;
+            case PORT_STEP3:
+                ringBase |= (data & 077) << 16;
+                commandRing = ringBase + (4 * responseLength);
+                if ((data & SA_S3H_PP) != 0) {
+                    state = PORT_PURGE;
+                    sa = 0;
+                    return;
+                }
+                state = PORT_STEP4;
+                sa = SA_S4 | SA_S4C_MODEL | SA_S4C_VERSION;
+                break;
+            case PORT_PURGE:
+                if (data != 0) {
+                    return;
+                }
+                state = PORT_STEP4;
+                sa = SA_S4 | SA_S4C_MODEL | SA_S4C_VERSION;
+                break;
+            case PORT_STEP4:
+                if ((data & SA_S4H_GO) == 0) {
+                    return;
+                }
+                state = PORT_RUNNING;
+                sa = 0;
+                commandIndex = 0;
+                responseIndex = 0;
+                credits = queueLimit - 1;
+                return;
+            default:
+                return;
+        }
+        if ((step1 & SA_S1H_IE) != 0) {
+            interrupt();
+        }
+    }
+
+    private void interrupt() {
+        if (vector != 0) {
+            unibus.scheduleInterrupt(this, MS_BRLEVEL, vector);
+        }
+    }
+
+    private static int event(int generation, int type) {
+        return ((generation & 0x3fffffff) << 1) | type;
+    }
+
+    // fail() - A fatal port error, the host has to initialize again.
+    private void fail(int code) {
+        logger.warn("MSCP port error {}", code);
+        state = PORT_ERROR;
+        sa = SA_ER | code;
+        interrupt();
+    }
+
+    @Override
+    public void eventService(int data) {
+        if ((data >>> 1) != (generation & 0x3fffffff)) {
+            return;					// from before an init
+        }
+        retryScheduled = false;
+        if ((data & 1) == MS_EVENT_DONE) {
+            Command c;
+            while ((c = finished.poll()) != null) {
+                if (c.generation == generation) {
+                    complete(c);
+                }
+            }
+        }
+        poll();
+        deliver();
+    }
+
+    @Override
+    public void interruptService() {
+    }
+
+    // poll() - Take commands off the command ring while there is room.
+    private void poll() {
+        while ((state == PORT_RUNNING) && (outstanding < queueLimit)) {
+            int desc = commandRing + (4 * commandIndex);
+            try {
+                int high = unibus.read(desc + 2) & 0177777;
+                if ((high & DESC_OWN) == 0) {
+                    return;
+                }
+                int addr = (unibus.read(desc) & 0177777) | ((high & DESC_ADDR) << 16);
+                int length;
+                int header;
+                ByteBuffer packet = ByteBuffer.allocate(MS_PACKET).order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    length = unibus.read(addr - 4) & 0177777;
+                    header = unibus.read(addr - 2) & 0177777;
+                    unibus.dmaRead(addr, packet, Math.min(length, MS_PACKET) / 2);
+                } catch (Trap e) {
+                    fail(PE_PACKET_READ);
+                    return;
+                }
+                unibus.write(desc + 2, (short) (high & ~DESC_OWN));
+                commandIndex = (commandIndex + 1) % commandLength;
+                if ((high & DESC_FLAG) != 0) {
+                    unibus.write(ringBase + COMM_CMD_INT, (short) 1);
+                    interrupt();
+                }
+                ++credits;
+                command(packet, header >> 8);
+            } catch (Trap e) {
+                fail(PE_DESCRIPTOR);
+                return;
+            }
+        }
+    }
+
+    // command() - Start a command.  Anything that doesn't touch the
+    // image ends here and now.
+    private void command(ByteBuffer packet, int connection) {
+        Command c = new Command();
+        c.generation = generation;
+        c.connection = connection;
+        c.packet = packet;
+        c.opcode = packet.get(P_OPCD) & 0377;
+        c.unit = packet.getShort(P_UNIT) & 0177777;
+        c.byteCount = packet.getInt(P_BCNT);
+        c.busAddr = (packet.getShort(P_BUFL) & 0177777)
+                | ((packet.getShort(P_BUFH) & 077) << 16);
+        c.lbn = packet.getInt(P_LBN) & 0xffffffffL;
+        ++statCommands;
+        ++outstanding;
+        statMaxQueue = Math.max(statMaxQueue, outstanding);
+        Unit u = (c.unit < units.length) ? units[c.unit] : null;
+        switch (c.opcode) {
+            case OP_ABO:
+            case OP_GCS:
+            case OP_SCC:
+                c.status = ST_SUC;
+                complete(c);
+                return;
+            case OP_GUS:
+                c.status = unitStatus(u, false);
+                complete(c);
+                return;
+            case OP_AVL:
+                c.status = unitStatus(u, false);
+                if (u != null) {
+                    u.online = false;
+                }
+                complete(c);
+                return;
+            case OP_ONL:
+            case OP_SUC:
+                c.status = unitStatus(u, false);
+                if (c.status == ST_SUC) {
+                    u.online = true;
+                }
+                complete(c);
+                return;
+            case OP_FLU:
+                c.status = unitStatus(u, true);
+                break;
+            case OP_RD:
+            case OP_WR:
+            case OP_CMP:
+            case OP_ACC:
+            case OP_ERS:
+                c.status = unitStatus(u, true);
+                if (c.status != ST_SUC) {
+                    break;
+                }
+                long blocks = ((c.byteCount & 0xffffffffL) + MS_BLOCK - 1) / MS_BLOCK;
+                if ((c.byteCount < 0) || (c.byteCount > MS_MAX_TRANSFER)) {
+                    c.status = ST_CMD | (P_BCNT << 8);
+                } else if ((c.lbn + blocks) > u.blocks) {
+                    c.status = ST_CMD | (P_LBN << 8);
+                } else if (((c.opcode == OP_WR) || (c.opcode == OP_ERS)) && u.readOnly) {
+                    c.status = ST_WPR | SB_WPR_HW;
+                } else if ((c.opcode == OP_WR) || (c.opcode == OP_CMP)) {
+                    c.data = ByteBuffer.allocate(c.byteCount + 1).order(ByteOrder.LITTLE_ENDIAN);
+                    try {
+                        unibus.dmaRead(c.busAddr, c.data, c.byteCount / 2);
+                        if ((c.byteCount & 1) != 0) {
+                            c.data.put((byte) unibus.read(c.busAddr + c.byteCount - 1));
+                        }
+                    } catch (Trap e) {
+                        c.status = ST_HST | SB_HST_NXM;
+                        c.moved = c.data.position() & ~1;
+                    }
+                    c.data.flip();
+                } else {
+                    c.data = ByteBuffer.allocate(c.byteCount + 1).order(ByteOrder.LITTLE_ENDIAN);
+                    c.data.limit(c.byteCount);
+                }
+                break;
+            default:
+                c.status = ST_CMD | (P_OPCD << 8);
+                complete(c);
+                return;
+        }
+        if (c.status != ST_SUC) {
+            complete(c);
+            return;
+        }
+        u.pending.incrementAndGet();
+        executor.execute(() -> hostIO(u, c));
+    }
+
+    // unitStatus() - Is the unit there, and for transfers, online?
+    private int unitStatus(Unit u, boolean transfer) {
+        if ((u == null) || (u.image == null)) {
+            return ST_OFL | ((u == null) ? 0 : SB_OFL_NV);
+        }
+        if (transfer && !u.online) {
+            return ST_AVL;
+        }
+        return ST_SUC;
+    }
+
+    // hostIO() - On the pool, do a command's I/O on the image, then
+    // hand it back to the CPU thread.
+    private void hostIO(Unit u, Command c) {
+        try {
+            MediaImage image = u.image;
+            if (image == null) {
+                c.status = ST_OFL | SB_OFL_NV;
+            } else if (u.concurrent) {
+                imageIO(image, c);
+            } else {
+                synchronized (image) {
+                    imageIO(image, c);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("MSCP unit " + c.unit + " I/O failed", e);
+            c.status = (c.opcode == OP_WR) || (c.opcode == OP_ERS) ? ST_DRV : ST_DAT;
+        } finally {
+            u.pending.decrementAndGet();
+        }
+        finished.add(c);
+        unibus.scheduleEvent(this, 0, event(c.generation, MS_EVENT_DONE));
+    }
+
+    private void imageIO(MediaImage image, Command c) throws IOException {
+        long position = c.lbn * MS_BLOCK;
+        switch (c.opcode) {
+            case OP_RD:
+                image.read(position, c.data);
+                c.data.flip();
+                break;
+            case OP_WR:
+                image.write(position, c.data);
+                c.moved = c.byteCount;
+                break;
+            case OP_ERS:
+                ByteBuffer zeros = ByteBuffer.allocate(Math.min(c.byteCount, 0200000));
+                for (long done = 0; done < c.byteCount; done += zeros.capacity()) {
+                    zeros.clear().limit((int) Math.min(zeros.capacity(), c.byteCount - done));
+                    image.write(position + done, zeros);
+                }
+                c.moved = c.byteCount;
+                break;
+            case OP_ACC:
+            case OP_CMP:
+                ByteBuffer disk = ByteBuffer.allocate(c.byteCount);
+                image.read(position, disk);
+                disk.flip();
+                if ((c.opcode == OP_CMP) && !disk.equals(c.data)) {
+                    c.status = ST_CMP;
+                }
+                c.moved = c.byteCount;
+                break;
+            case OP_FLU:
+                image.flush();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // complete() - On the CPU thread, store a read's data and queue the
+    // end message.
+    private void complete(Command c) {
+        if ((c.opcode == OP_RD) && (c.status == ST_SUC)) {
+            try {
+                unibus.dmaWrite(c.busAddr, c.data, c.byteCount / 2);
+                if ((c.byteCount & 1) != 0) {
+                    unibus.writebyte(c.busAddr + c.byteCount - 1, c.data.get());
+                }
+                c.moved = c.byteCount;
+            } catch (Trap e) {
+                c.status = ST_HST | SB_HST_NXM;
+                c.moved = c.data.position() & ~1;
+            }
+            ++statReads;
+            statBytes += c.moved;
+        } else if ((c.opcode == OP_WR) && (c.status == ST_SUC)) {
+            ++statWrites;
+            statBytes += c.moved;
+        }
+        --outstanding;
+        responses.add(endMessage(c));
+    }
+
+    // endMessage() - Build the end message for a command.  The first
+    // two bytes hold the connection, the text follows.
+    private ByteBuffer endMessage(Command c) {
+        ByteBuffer m = ByteBuffer.allocate(2 + 48).order(ByteOrder.LITTLE_ENDIAN);
+        m.putShort((short) c.connection);
+        ByteBuffer t = m.slice().order(ByteOrder.LITTLE_ENDIAN);
+        t.putInt(P_CRF, c.packet.getInt(P_CRF));
+        t.putShort(P_UNIT, (short) c.unit);
+        t.put(P_OPCD, (byte) (c.opcode | OP_END));
+        t.put(P_FLAGS, (byte) 0);
+        t.putShort(P_STS, (short) c.status);
+        int length;
+        Unit u = (c.unit < units.length) ? units[c.unit] : null;
+        switch (c.opcode) {
+            case OP_ABO:
+                t.putInt(12, c.packet.getInt(12));	// outstanding reference
+                length = 16;
+                break;
+            case OP_GCS:
+                t.putInt(12, c.packet.getInt(12));
+                t.putInt(16, 0);			// it's done
+                length = 20;
+                break;
+            case OP_SCC:
+                t.putShort(12, (short) 0);		// MSCP version
+                t.putShort(14, (short) 0);		// controller flags
+                t.putShort(16, (short) 255);		// controller timeout
+                t.put(18, (byte) SA_S4C_VERSION);
+                t.put(19, (byte) 1);
+                t.putInt(20, info.base);		// controller id
+                t.put(26, (byte) (SA_S4C_MODEL >> 4));
+                t.put(27, (byte) 1);			// mass storage
+                length = 28;
+                break;
+            case OP_GUS:
+                unitInfo(t, u, c.unit);
+                if ((u != null) && (u.type != null)) {
+                    t.putShort(36, (short) u.type.trackSize);
+                    t.putShort(38, (short) u.type.groupSize);
+                    t.putShort(40, (short) u.type.cylinderSize);
+                    t.put(42, (byte) 1);		// unit software version
+                    t.put(43, (byte) 1);		// hardware version
+                    t.putShort(44, (short) u.type.rctSize);
+                    t.put(46, (byte) 1);		// RBNs per track
+                    t.put(47, (byte) 1);		// RCT copies
+                }
+                length = 48;
+                break;
+            case OP_AVL:
+                length = 12;
+                break;
+            case OP_ONL:
+            case OP_SUC:
+                unitInfo(t, u, c.unit);
+                if ((u != null) && (u.image != null)) {
+                    t.putInt(36, (int) u.blocks);
+                    t.putInt(40, c.unit + 1);		// volume serial number
+                }
+                length = 44;
+                break;
+            case OP_RD:
+            case OP_WR:
+            case OP_CMP:
+            case OP_ACC:
+            case OP_ERS:
+                t.putInt(P_BCNT, c.moved);
+                t.putInt(P_LBN, 0);			// first bad block
+                length = 32;
+                break;
+            default:
+                length = 12;
+                break;
+        }
+        m.limit(2 + length);
+        return m;
+    }
+
+    // unitInfo() - The unit flags, unit id and media id.
+    private void unitInfo(ByteBuffer t, Unit u, int unit) {
+        if ((u == null) || (u.type == null)) {
+            return;
+        }
+        t.putShort(14, (short) (u.readOnly ? UF_WPH : 0));
+        t.putInt(20, unit + 1);				// unit id, serial
+        t.put(26, (byte) u.type.model);
+        t.put(27, (byte) 2);				// disk class
+        t.putInt(28, u.type.mediaId);
+    }
+
+    // deliver() - Put end messages in the response ring's free slots.
+    private void deliver() {
+        while ((state == PORT_RUNNING) && !responses.isEmpty()) {
+            int desc = ringBase + (4 * responseIndex);
+            try {
+                int high = unibus.read(desc + 2) & 0177777;
+                if ((high & DESC_OWN) == 0) {
+                    // the host hasn't given one, look again shortly, it
+                    // may be waiting for these before it reads IP again
+                    if (!retryScheduled) {
+                        retryScheduled = true;
+                        unibus.scheduleEvent(this, MS_RETRY,
+                                event(generation, MS_EVENT_POLL));
+                    }
+                    return;
+                }
+                int addr = (unibus.read(desc) & 0177777) | ((high & DESC_ADDR) << 16);
+                ByteBuffer m = responses.poll();
+                int connection = m.getShort(0) & 0177777;
+                m.position(2);
+                int length = m.remaining();
+                try {
+                    int room = unibus.read(addr - 4) & 0177777;
+                    m.limit(2 + (Math.min(length, room) & ~1));
+                    unibus.dmaWrite(addr, m, (m.remaining() + 1) / 2);
+                    int cr = Math.min(credits, 14);
+                    credits -= cr;
+                    unibus.write(addr - 4, (short) (m.limit() - 2));
+                    unibus.write(addr - 2, (short) ((connection << 8) | (cr + 1)));
+                } catch (Trap e) {
+                    fail(PE_PACKET_WRITE);
+                    return;
+                }
+                unibus.write(desc + 2, (short) (high & ~DESC_OWN));
+                responseIndex = (responseIndex + 1) % responseLength;
+                if ((high & DESC_FLAG) != 0) {
+                    unibus.write(ringBase + COMM_RSP_INT, (short) 1);
+                    interrupt();
+                }
+            } catch (Trap e) {
+                fail(PE_DESCRIPTOR);
+                return;
+            }
+        }
+    }
+
+}
@@ -21,48 +21,201 @@
 // OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 // SOFTWARE.
 //
-// MakeDisks.java - 
+// MakeDisks.java - Make empty disk images, one or a batch at a time.
+//
+// An image is made at its full size with RandomAccessFile.setLength(),
+// so it is sparse on any file system that can be, and takes no time
+// however big the disk.  An image can instead be a copy of a template,
+// made with FileChannel.transferTo() so the kernel does the copying
+// (and may share the blocks); it is then grown to the disk's size if
+// the template is smaller.
+//
+//     MakeDisks <image> <type> [<template>]
+//     MakeDisks -f <batch>
+//
+// The type is rl01, rl02, rx01, rd53, rd54, ra60, ra81, ra82 or a size
+// in bytes.  A batch file has a line of the same three fields for each
+// image, and # comments; the images are made in parallel on a fork-join
+// pool.
 //
-
 package io.github.ericedwards.terakemu;
 
-import java.io.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class MakeDisks {
 
-  private static final int RL_CYL_RL01 = 256;
-  private static final int RL_CYL_RL02 = 512;
-  private static final int RL_NUM_SECT = 40;
-  private static final int RL_NUM_HEADS = 2;
-  private static final int RL_WORDS_SECTOR = 128;
-  private static final int RL_BYTES_SECTOR = (RL_WORDS_SECTOR * 2);
-  private static final int RL_BYTES_TRACK = (RL_BYTES_SECTOR * RL_NUM_SECT);
-  private static final int RL_BYTES_CYL = (RL_BYTES_TRACK * RL_NUM_HEADS);
-  private static final int RL_SIZE_RL01 = (RL_BYTES_CYL * RL_CYL_RL01);
-  private static final int RL_SIZE_RL02 = (RL_BYTES_CYL * RL_CYL_RL02);
+    private static final String[] TYPES
+            = {"rl01", "rl02", "rx01", "rd53", "rd54", "ra60", "ra81", "ra82"};
+    private static final long[] SIZES = {
+        5242880, 10485760, 256256,
+        138672L * 512, 311200L * 512, 400176L * 512, 891072L * 512, 1216665L * 512
+    };
+
+    // size() - The bytes in a disk of the given type.
+    public static long size(String type) throws IOException {
+        for (int i = 0; i < TYPES.length; ++i) {
+            if (TYPES[i].equals(type)) {
+                return SIZES[i];
+            }
+        }
+        try {
+            long size = Long.parseLong(type);
+            if (size > 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new IOException("unknown disk type " + type);
+    }
+
+    // makeDisk() - Make an empty image of size bytes, all of it a hole.
+    public static void makeDisk(String path, long size) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(path, "rw")) {
+            f.setLength(0);
+            f.setLength(size);
+        }
+    }
 
-  public static void makeDisk(String path, boolean big) throws IOException {
-    int size;
-    if (big)
-      size = (RL_SIZE_RL02/RL_BYTES_SECTOR);
-    else
-      size = (RL_SIZE_RL01/RL_BYTES_SECTOR);
-    FileOutputStream f = new FileOutputStream(path, false);
-    byte[] b = new byte[256];
-    for (int i = 0; i < size; ++i) {
-      f.write(b);
+    // cloneDisk() - Make an image as a copy of a template, then grow it
+    // to size bytes.
+    public static void cloneDisk(String path, String template, long size)
+            throws IOException {
+        if (new File(path).getCanonicalFile().equals(
+                new File(template).getCanonicalFile())) {
+            throw new IOException(path + " is its own template");
+        }
+        try (RandomAccessFile in = new RandomAccessFile(template, "r")) {
+            FileChannel src = in.getChannel();
+            long length = src.size();
+            if (length > size) {
+                throw new IOException(template + " is bigger than the disk");
+            }
+            try (RandomAccessFile out = new RandomAccessFile(path, "rw")) {
+                FileChannel dst = out.getChannel();
+                out.setLength(0);
+                long position = 0;
+                while (position < length) {
+                    position += src.transferTo(position, length - position, dst);
+                }
+                out.setLength(size);
+            }
+        }
     }
-    f.close();
-  }
 
-  public static void main(String args[]) {
-    try {
-      makeDisk("C:/Sandbox/PDP11BSD/RL.0", true);
-      makeDisk("C:/Sandbox/PDP11BSD/RL.1", true);
-      makeDisk("C:/Sandbox/PDP11BSD/RL.2", true);
-      makeDisk("C:/Sandbox/PDP11BSD/RL.3", true);
-    } catch(IOException e) {
-      System.out.println("Error Occurred");
+    // make() - Make one image from its fields: path, type and template.
+    public static void make(String[] spec) throws IOException {
+        long size = size(spec[1]);
+        if (spec.length > 2) {
+            cloneDisk(spec[0], spec[2], size);
+        } else {
+            makeDisk(spec[0], size);
+        }
     }
-  }
+
+    // readBatch() - The image lines of a batch file.  The images are
+    // made at the same time, so no image may be named twice or be the
+    // template of another.
+    public static List<String[]> readBatch(String path) throws IOException {
+        List<String[]> specs = new ArrayList<>();
+        Set<File> images = new HashSet<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(path))) {
+            String line;
+            int n = 0;
+            while ((line = r.readLine()) != null) {
+                ++n;
+                int hash = line.indexOf('#');
+                if (hash >= 0) {
+                    line = line.substring(0, hash);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if ((fields.length < 2) || (fields.length > 3)) {
+                    throw new IOException(path + ":" + n + ": expected <image> <type> [<template>]");
+                }
+                size(fields[1]);			// check it now
+                if (!images.add(new File(fields[0]).getCanonicalFile())) {
+                    throw new IOException(path + ":" + n + ": " + fields[0] + " is made twice");
+                }
+                specs.add(fields);
+            }
+        }
+        for (String[] spec : specs) {
+            if ((spec.length > 2)
+                    && images.contains(new File(spec[2]).getCanonicalFile())) {
+                throw new IOException(path + ": " + spec[2]
+                        + " is made by the batch, it can't be a template");
+            }
+        }
+        return specs;
+    }
+
+    // makeAll() - Make every image in parallel.  Returns how many failed,
+    // each failure having been reported.
+    public static int makeAll(List<String[]> specs) {
+        List<ForkJoinTask<String>> tasks = new ArrayList<>();
+        for (final String[] spec : specs) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                try {
+                    make(spec);
+                    return null;
+                } catch (IOException e) {
+                    return spec[0] + ": " + e.getMessage();
+                }
+            }));
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        int failed = 0;
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            for (ForkJoinTask<String> t : tasks) {
+                String error = t.join();
+                if (error != null) {
+                    System.out.println("Error: " + error);
+                    ++failed;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return failed;
+    }
+
+    public static void main(String args[]) {
+        try {
+            if ((args.length == 2) && args[0].equals("-f")) {
+                List<String[]> specs = readBatch(args[1]);
+                int failed = makeAll(specs);
+                System.out.println("Made " + (specs.size() - failed) + " of "
+                        + specs.size() + " images");
+                if (failed != 0) {
+                    System.exit(1);
+                }
+            } else if ((args.length == 2) || (args.length == 3)) {
+                make(args);
+            } else {
+                System.out.println("usage: MakeDisks <image> <type> [<template>]");
+                System.out.println("       MakeDisks -f <batch>");
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * MappedImage.java - Disk image mapped into memory.
+ *
+ * The whole file is mapped with FileChannel.map(), so a transfer is a
+ * memory copy with no system call.  How often the mapping is forced
+ * back to the file is picked with the flush option:
+ *
+ *     flush=write      after every write
+ *     flush=periodic   every flushms milliseconds (default 1000)
+ *     flush=detach     only when the image is flushed or closed
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MappedImage implements MediaImage {
+
+    private static final int FLUSH_WRITE = 0;
+    private static final int FLUSH_PERIODIC = 1;
+    private static final int FLUSH_DETACH = 2;
+    private static final int DEFAULT_FLUSH_MS = 1000;
+
+    private static ScheduledExecutorService flusher = null;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer mapped;
+    private final int flushPolicy;
+    private ScheduledFuture<?> flushTask;
+    private volatile boolean dirty;
+
+    public MappedImage(String path, DeviceOptions options) throws IOException {
+        String flush = options.get("flush", "periodic");
+        if (flush.equals("write")) {
+            flushPolicy = FLUSH_WRITE;
+        } else if (flush.equals("periodic")) {
+            flushPolicy = FLUSH_PERIODIC;
+        } else if (flush.equals("detach")) {
+            flushPolicy = FLUSH_DETACH;
+        } else {
+            throw new IllegalArgumentException("bad flush option: " + flush);
+        }
+        file = new RandomAccessFile(path, "rw");
+        try {
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, file.length());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        dirty = false;
+        if (flushPolicy == FLUSH_PERIODIC) {
+            int period = options.getInt("flushms", DEFAULT_FLUSH_MS);
+            flushTask = flusher().scheduleWithFixedDelay(() -> {
+                if (dirty) {
+                    dirty = false;
+                    mapped.force();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService flusher() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread t = new Thread(r, "MappedImage flusher");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return flusher;
+    }
+
+    // window() - A view of part of the mapping, independent of any
+    // other view so concurrent transfers don't share a position.
+    private ByteBuffer window(long position, int length) throws IOException {
+        if ((position < 0) || ((position + length) > mapped.capacity())) {
+            throw new EOFException();
+        }
+        ByteBuffer b = mapped.duplicate();
+        b.position((int) position);
+        b.limit((int) position + length);
+        return b;
+    }
+
+    @Override
+    public long length() {
+        return mapped.capacity();
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        dst.put(window(position, dst.remaining()));
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        window(position, src.remaining()).put(src);
+        if (flushPolicy == FLUSH_WRITE) {
+            mapped.force();
+        } else {
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void flush() {
+        dirty = false;
+        mapped.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flush();
+        file.close();
+    }
+
+}
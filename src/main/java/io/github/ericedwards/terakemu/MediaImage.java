@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * MediaImage.java - Random access backing store for a disk image.
+ *
+ * Offsets are byte offsets into the image.  read() and write() move
+ * all of the buffer's remaining bytes, or throw.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface MediaImage {
+
+    public long length() throws IOException;
+
+    public void read(long position, ByteBuffer dst) throws IOException;
+
+    public void write(long position, ByteBuffer src) throws IOException;
+
+    public void flush() throws IOException;
+
+    public void close() throws IOException;
+
+    // open() - Open an image the way the options ask for.  With
+    // overlay[=delta] the image itself is only read (see OverlayImage),
+    // the delta defaulting to path.delta.  Compressed images are
+    // recognized by their magic number.  With journal[=path] writes go
+    // through a JournaledImage.
+    public static MediaImage open(String path, DeviceOptions options)
+            throws IOException {
+        MediaImage image;
+        if (options.has("overlay")) {
+            image = new OverlayImage(path, options.get("overlay", path + ".delta"));
+        } else if (CompressedImage.isCompressed(path)) {
+            image = new CompressedImage(path, false);
+        } else if (options.has("mmap")) {
+            image = new MappedImage(path, options);
+        } else {
+            image = new FileImage(path, false);
+        }
+        if (options.has("journal")) {
+            try {
+                image = new JournaledImage(image,
+                        options.get("journal", path + ".jnl"), options);
+            } catch (IOException | RuntimeException e) {
+                image.close();
+                throw e;
+            }
+        }
+        return image;
+    }
+
+    // openReadOnly() - Open an image, in whatever format, only to read it.
+    public static MediaImage openReadOnly(String path) throws IOException {
+        if (CompressedImage.isCompressed(path)) {
+            return new CompressedImage(path, true);
+        }
+        return new FileImage(path, true);
+    }
+
+}
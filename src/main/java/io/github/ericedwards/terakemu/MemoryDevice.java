@@ -24,6 +24,8 @@
  */
 package io.github.ericedwards.terakemu;
 
+import java.nio.ByteBuffer;
+
 public class MemoryDevice implements QbusDevice {
 
     private static final int MEMSIZE = 124;       // size in Kwords
@@ -68,6 +70,18 @@ public class MemoryDevice implements QbusDevice {
         mem[addr >> 1] = (short) t;
     }
 
+    // readBlock() and writeBlock() - Bulk copies for DMA, the buffer
+    // must be little endian.
+    public void readBlock(int addr, ByteBuffer dst, int words) {
+        dst.asShortBuffer().put(mem, addr >> 1, words);
+        dst.position(dst.position() + (words * 2));
+    }
+
+    public void writeBlock(int addr, ByteBuffer src, int words) {
+        src.asShortBuffer().get(mem, addr >> 1, words);
+        src.position(src.position() + (words * 2));
+    }
+
     @Override
     public void eventService(int data) {
         // do nothing
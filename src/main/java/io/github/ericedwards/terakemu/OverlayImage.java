@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * OverlayImage.java - Copy-on-write overlay over a read-only disk image.
+ *
+ * The base image, raw or compressed, is opened read-only and never changed.  Blocks that
+ * are written go to a delta file instead, which is laid out as
+ *
+ *     header    magic, version, block size, base length, base path
+ *     bitmap    one bit per block, set once the block is in the delta
+ *     data      each block at its own offset, so the file stays sparse
+ *
+ * Reads of blocks that were never written fall through to the base.
+ * DiskImageTool commits a delta into its base or throws it away.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+public class OverlayImage implements MediaImage {
+
+    public static final int MAGIC = 0x564f4b54;         // "TKOV"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_BLOCK = 256;
+    private static final int HEADER_SIZE = 512;
+
+    private final MediaImage base;
+    private final MediaImage delta;
+    private final int blockBytes;
+    private final long length;
+    private final long bitmapStart;
+    private final long dataStart;
+    private final byte[] bitmap;
+    private final String basePath;
+
+    // OverlayImage() - Open the delta for a base, making an empty one
+    // if it doesn't exist yet.
+    public OverlayImage(String basePath, String deltaPath, int newBlockBytes)
+            throws IOException {
+        boolean exists = new File(deltaPath).exists();
+        base = MediaImage.openReadOnly(basePath);
+        try {
+            delta = new FileImage(deltaPath, false);
+        } catch (IOException e) {
+            base.close();
+            throw e;
+        }
+        try {
+            if (exists) {
+                Header h = readHeader(delta);
+                if (h.length != base.length()) {
+                    throw new IOException(deltaPath + " is not a delta for "
+                            + basePath);
+                }
+                blockBytes = h.blockBytes;
+            } else {
+                blockBytes = newBlockBytes;
+            }
+            this.basePath = basePath;
+            length = base.length();
+            bitmap = new byte[(int) ((blocks(length, blockBytes) + 7) / 8)];
+            bitmapStart = HEADER_SIZE;
+            dataStart = roundUp(bitmapStart + bitmap.length, blockBytes);
+            if (exists) {
+                delta.read(bitmapStart, ByteBuffer.wrap(bitmap));
+            } else {
+                writeHeader();
+                delta.write(bitmapStart, ByteBuffer.wrap(bitmap));
+            }
+        } catch (IOException e) {
+            base.close();
+            delta.close();
+            throw e;
+        }
+    }
+
+    public OverlayImage(String basePath, String deltaPath) throws IOException {
+        this(basePath, deltaPath, DEFAULT_BLOCK);
+    }
+
+    private static long blocks(long length, int blockBytes) {
+        return (length + blockBytes - 1) / blockBytes;
+    }
+
+    private static long roundUp(long n, int blockBytes) {
+        return blocks(n, blockBytes) * blockBytes;
+    }
+
+    // Header - What a delta file says about itself.
+    public static class Header {
+        public int blockBytes;
+        public long length;
+        public String basePath;
+    }
+
+    public static Header readHeader(MediaImage delta) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        delta.read(0, b);
+        b.flip();
+        if ((b.getInt() != MAGIC) || (b.getInt() != VERSION)) {
+            throw new IOException("not an overlay delta");
+        }
+        Header h = new Header();
+        h.blockBytes = b.getInt();
+        h.length = b.getLong();
+        byte[] path = new byte[b.getShort()];
+        b.get(path);
+        h.basePath = new String(path, StandardCharsets.UTF_8);
+        if ((h.blockBytes <= 0) || (h.length < 0)) {
+            throw new IOException("bad overlay delta header");
+        }
+        return h;
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] path = new File(basePath).getAbsolutePath()
+                .getBytes(StandardCharsets.UTF_8);
+        if (path.length > (HEADER_SIZE - 22)) {
+            throw new IOException("base path too long");
+        }
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(MAGIC).putInt(VERSION).putInt(blockBytes).putLong(length);
+        b.putShort((short) path.length).put(path);
+        b.clear();
+        delta.write(0, b);
+    }
+
+    public int getBlockBytes() {
+        return blockBytes;
+    }
+
+    public boolean isAllocated(long block) {
+        return (bitmap[(int) (block >> 3)] & (1 << (block & 7))) != 0;
+    }
+
+    // allocate() - Mark a block as living in the delta.  The data is
+    // already there, so a crash leaves at worst an unused block.
+    private void allocate(long block) throws IOException {
+        int i = (int) (block >> 3);
+        bitmap[i] |= (1 << (block & 7));
+        delta.write(bitmapStart + i, ByteBuffer.wrap(bitmap, i, 1));
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        if ((position + dst.remaining()) > length) {
+            throw new java.io.EOFException();
+        }
+        while (dst.hasRemaining()) {
+            // take the run of blocks that all live in the same place
+            long block = position / blockBytes;
+            boolean inDelta = isAllocated(block);
+            long end = position + dst.remaining();
+            long runEnd = Math.min(end, (block + 1) * blockBytes);
+            while ((runEnd < end) && (isAllocated(runEnd / blockBytes) == inDelta)) {
+                runEnd = Math.min(end, runEnd + blockBytes);
+            }
+            ByteBuffer part = dst.duplicate();
+            part.limit(part.position() + (int) (runEnd - position));
+            if (inDelta) {
+                delta.read(dataStart + position, part);
+            } else {
+                base.read(position, part);
+            }
+            dst.position(part.position());
+            position = runEnd;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        if ((position + src.remaining()) > length) {
+            throw new java.io.EOFException();
+        }
+        while (src.hasRemaining()) {
+            long block = position / blockBytes;
+            int from = (int) (position % blockBytes);
+            int count = Math.min(blockBytes - from, src.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + count);
+            if (isAllocated(block)) {
+                delta.write(dataStart + position, part);
+            } else {
+                // first write to this block, copy the rest of it up
+                int size = (int) Math.min(blockBytes, length - (block * blockBytes));
+                ByteBuffer b = ByteBuffer.allocate(size);
+                if ((from != 0) || (count != size)) {
+                    base.read(block * blockBytes, b);
+                    b.clear();
+                }
+                b.position(from);
+                b.put(part);
+                b.clear();
+                delta.write(dataStart + (block * blockBytes), b);
+                allocate(block);
+            }
+            src.position(src.position() + count);
+            position += count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delta.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delta.close();
+        } finally {
+            base.close();
+        }
+    }
+
+}
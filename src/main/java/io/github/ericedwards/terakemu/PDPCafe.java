@@ -48,6 +48,11 @@ public class PDPCafe {
         } catch (java.io.IOException e) {
             System.out.println("Can't open file");
         }
+        if ("stdio".equals(System.getProperty("terakemu.terminal"))) {
+            // standard input is the guest's, so boot it with no command
+            // line and stop when it halts
+            runWithoutCommandLine(cpu);
+        }
         System.out.println("Starting command line:");
         CommandLine cm = new CommandLine();
         while (cm.isAlive()) {
@@ -59,4 +64,21 @@ public class PDPCafe {
         }
         System.exit(0);
     }
+
+    private static void runWithoutCommandLine(CPUDevice cpu) {
+        cpu.regs[7] = (short) 0173000;
+        cpu.psw = 0340;
+        if (!cpu.startExecution(false)) {
+            System.err.println("** boot failed **");
+            System.exit(1);
+        }
+        while (cpu.isExecuting()) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // keep waiting
+            }
+        }
+        System.exit(0);
+    }
 }
@@ -28,10 +28,36 @@
  * http://bitsavers.trailing-edge.com/pdf/terak/50-0010-001_8510a_Graphics_Computer_System_Installation_and_Users_Guide_1980.pdf
  *
  * It isn't DMA capabile like the QB Variable Density Disk Controller.
+ * Software sees it much like an RX11: a command and status register at
+ * 177000 and a data buffer register at 177002, through which sector
+ * and track numbers go in and the 128 byte sector buffer is filled and
+ * emptied a byte at a time.  The boot rom at 173000 reads track 1
+ * sector 1 of unit 0 into location 0 and jumps to it.
+ *
+ * A single density 8" floppy is only 77 tracks of 26 sectors, 256256
+ * bytes, so the whole image is read into memory when it is assigned and
+ * sector transfers are array copies.  Tracks that have been written are
+ * copied back to the image file in the background every flushms
+ * milliseconds (default 1000), while any floppy is assigned, and when
+ * the image is flushed or detached.  Deleted data marks are kept only while the image is
+ * assigned, a plain image has nowhere to keep them.
  */
 package io.github.ericedwards.terakemu;
 
-public class QXDiskDevice implements QbusDevice {
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class QXDiskDevice implements QbusDevice, Flushable, DeviceStatistics {
+
+    static Logger logger = LoggerFactory.getLogger(QXDiskDevice.class);
 
     private static final int QX_BASE = 0777000;
     private static final int QX_SIZE = 2;
@@ -40,46 +66,519 @@ public class QXDiskDevice implements QbusDevice {
     private static final int QX_VECTOR = 0250;  // default interrupt vector
     private static final int QX_BRLEVEL = 5;	// default bus request level
     private static final int QX_DELAY = 100;	// in instructions
+    private static final int QX_FLUSH_MS = 1000;	// write-back period
+
+    // Floppy geometry.
+    private static final int QX_UNITS = 2;
+    private static final int QX_TRACKS = 77;
+    private static final int QX_SECTORS = 26;	// numbered from 1
+    private static final int QX_SECTOR_SIZE = 128;
+    private static final int QX_TRACK_SIZE = QX_SECTORS * QX_SECTOR_SIZE;
+    private static final int QX_IMAGE_SIZE = QX_TRACKS * QX_TRACK_SIZE;
+
+    // Command and status register definitions.
+    private static final int QX_GO = 01;
+    private static final int QX_FUNC = 016;
+    private static final int QX_UNIT = 020;
+    private static final int QX_DONE = 040;
+    private static final int QX_IE = 0100;
+    private static final int QX_TR = 0200;	// transfer request
+    private static final int QX_INIT = 040000;
+    private static final int QX_ERROR = 0100000;
+
+    // Functions.
+    private static final int QX_FILL = 0;
+    private static final int QX_EMPTY = 02;
+    private static final int QX_WRITE = 04;
+    private static final int QX_READ = 06;
+    private static final int QX_STATUS = 012;
+    private static final int QX_WRITE_DELETED = 014;
+    private static final int QX_READ_ERROR = 016;
+
+    // Error and status register definitions.
+    private static final int QX_ES_CRC = 01;
+    private static final int QX_ES_INIT_DONE = 04;
+    private static final int QX_ES_DELETED = 0100;
+    private static final int QX_ES_READY = 0200;
+
+    // Error codes, for read error.
+    private static final int QX_ERR_TRACK = 040;	// no such track
+    private static final int QX_ERR_SECTOR = 070;	// sector not found
+    private static final int QX_ERR_NOT_READY = 0110;	// no floppy
+    private static final int QX_ERR_WRITE_LOCK = 0120;	// image is read only
+
+    // Controller states.
+    private static final int QX_IDLE = 0;
+    private static final int QX_FILLING = 1;	// taking buffer bytes
+    private static final int QX_EMPTYING = 2;	// giving buffer bytes
+    private static final int QX_WANT_SECTOR = 3;
+    private static final int QX_WANT_TRACK = 4;
+    private static final int QX_BUSY = 5;	// waiting for the event
+
+    private static final short[] qx_boot_rom = {
+        (short) 0012701, // mov	#177000,r1
+        (short) 0177000,
+        (short) 0012711, // mov	#40000,(r1)	init
+        (short) 0040000,
+        (short) 0032711, // bit	#40,(r1)
+        (short) 0000040,
+        (short) 0001775, // beq	-3
+        (short) 0012711, // mov	#7,(r1)		read sector
+        (short) 0000007,
+        (short) 0105711, // tstb	(r1)
+        (short) 0100376, // bpl	-2
+        (short) 0012761, // mov	#1,2(r1)	sector 1
+        (short) 0000001,
+        (short) 0000002,
+        (short) 0105711, // tstb	(r1)
+        (short) 0100376, // bpl	-2
+        (short) 0012761, // mov	#1,2(r1)	track 1
+        (short) 0000001,
+        (short) 0000002,
+        (short) 0032711, // bit	#40,(r1)
+        (short) 0000040,
+        (short) 0001775, // beq	-3
+        (short) 0005711, // tst	(r1)
+        (short) 0100414, // bmi	halt
+        (short) 0012711, // mov	#3,(r1)		empty buffer
+        (short) 0000003,
+        (short) 0005000, // clr	r0
+        (short) 0012702, // mov	#200,r2
+        (short) 0000200,
+        (short) 0105711, // tstb	(r1)
+        (short) 0100376, // bpl	-2
+        (short) 0116120, // movb	2(r1),(r0)+
+        (short) 0000002,
+        (short) 0077205, // sob	r2,-5
+        (short) 0005000, // clr	r0
+        (short) 0000110, // jmp	(r0)
+        (short) 0000000 // halt
+    };
+
+    // A floppy drive, its whole image held in memory.
+    private static class Unit {
+        MediaImage image;		// null if no floppy
+        boolean readOnly;
+        final byte[] data = new byte[QX_IMAGE_SIZE];
+        final boolean[] dirty = new boolean[QX_TRACKS];
+        final boolean[] deleted = new boolean[QX_TRACKS * QX_SECTORS];
+        boolean anyDirty;
+    }
+
+    private static ScheduledExecutorService flusher = null;
+
+    private final Unit[] units = new Unit[QX_UNITS];
+    private final byte[] buffer = new byte[QX_SECTOR_SIZE];
+    private final Qbus qbus;
+    private final int flushPeriod;		// ms, 0 for no background flush
+    private ScheduledFuture<?> flushTask;	// null if nothing is assigned
 
-    private static final short[] qx_boot_rom = {};
+    // Controller register images.
+    private int qxcs;				// IE, function and unit
+    private int qxdb;
+    private int qxes;
+    private int errorCode;
+    private boolean done;
+    private boolean error;
+    private int state;
+    private int count;				// buffer bytes moved
+    private int sector;
+    private int track;
+    private int generation;			// bumped by init, for events
+    private boolean initializing;
+
+    private long statReads;
+    private long statWrites;
+    private long statWriteBacks;
 
     public QXDiskDevice() {
-        Qbus qbus = Qbus.instance();
+        this("");
+    }
+
+    public QXDiskDevice(String options) {
+        for (int i = 0; i < QX_UNITS; ++i) {
+            units[i] = new Unit();
+        }
+        qbus = Qbus.instance();
         QbusDeviceInfo qbusDeviceInfo;
         qbusDeviceInfo = new QbusDeviceInfo(this, QX_BASE, QX_SIZE, "TERAK QX", true);
         qbus.registerDevice(qbusDeviceInfo, true);
         qbusDeviceInfo = new QbusDeviceInfo(this, QX_BOOT_BASE, QX_BOOT_SIZE, "TERAK QX BOOT", true);
         qbus.registerDevice(qbusDeviceInfo);
+        flushPeriod = new DeviceOptions(options).getInt("flushms", QX_FLUSH_MS);
+        done = true;
+        qxes = QX_ES_INIT_DONE;
+    }
+
+    private static synchronized ScheduledExecutorService flusher() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread t = new Thread(r, "QX write-back");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return flusher;
+    }
+
+    // scheduleFlush() - Have the shared flusher write back this device's
+    // floppies while it has any, and forget it when it has none.
+    private synchronized void scheduleFlush() {
+        boolean assigned = false;
+        for (Unit u : units) {
+            synchronized (u) {
+                assigned |= (u.image != null);
+            }
+        }
+        if (assigned && (flushTask == null) && (flushPeriod > 0)) {
+            flushTask = flusher().scheduleWithFixedDelay(() -> {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    logger.error("floppy write-back failed", e);
+                }
+            }, flushPeriod, flushPeriod, TimeUnit.MILLISECONDS);
+        } else if (!assigned && (flushTask != null)) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+    }
+
+    public void assign(int unit, String path) throws IOException {
+        assign(unit, path, "");
+    }
+
+    // assign() - Read a floppy image into memory.  A short image is
+    // padded with zeros, and only grows if the padding is written.  The
+    // ro option write locks it.
+    public void assign(int unit, String path, String options) throws IOException {
+        if ((unit < 0) || (unit >= QX_UNITS)) {
+            throw new IOException("no floppy unit " + unit);
+        }
+        detach(unit);
+        DeviceOptions opts = new DeviceOptions(options);
+        MediaImage image = MediaImage.open(path, opts);
+        try {
+            long length = image.length();
+            if (length > QX_IMAGE_SIZE) {
+                throw new IOException(path + " is too big for a floppy");
+            }
+            Unit u = units[unit];
+            synchronized (u) {
+                Arrays.fill(u.data, (byte) 0);
+                Arrays.fill(u.dirty, false);
+                Arrays.fill(u.deleted, false);
+                image.read(0, ByteBuffer.wrap(u.data, 0, (int) length));
+                u.anyDirty = false;
+                u.readOnly = opts.has("ro");
+                u.image = image;
+            }
+        } catch (IOException | RuntimeException e) {
+            image.close();
+            throw e;
+        }
+        scheduleFlush();
+    }
+
+    // detach() - Write back and close a floppy image.
+    public void detach(int unit) throws IOException {
+        if ((unit < 0) || (unit >= QX_UNITS)) {
+            throw new IOException("no floppy unit " + unit);
+        }
+        Unit u = units[unit];
+        try {
+            synchronized (u) {
+                if (u.image != null) {
+                    try {
+                        writeBack(u);
+                    } finally {
+                        u.image.close();
+                        u.image = null;
+                    }
+                }
+            }
+        } finally {
+            scheduleFlush();
+        }
+    }
+
+    // flush() - Write back every floppy's written tracks.
+    @Override
+    public void flush() throws IOException {
+        for (Unit u : units) {
+            synchronized (u) {
+                writeBack(u);
+            }
+        }
+    }
+
+    // writeBack() - Copy the written tracks to the image.  Call holding u.
+    private void writeBack(Unit u) throws IOException {
+        if ((u.image == null) || !u.anyDirty) {
+            return;
+        }
+        for (int t = 0; t < QX_TRACKS; ++t) {
+            if (u.dirty[t]) {
+                u.image.write((long) t * QX_TRACK_SIZE,
+                        ByteBuffer.wrap(u.data, t * QX_TRACK_SIZE, QX_TRACK_SIZE));
+                u.dirty[t] = false;
+                ++statWriteBacks;
+            }
+        }
+        u.anyDirty = false;
+        u.image.flush();
+    }
+
+    @Override
+    public String getStatistics() {
+        return "sectors read " + statReads + " written " + statWrites
+                + " tracks written back " + statWriteBacks;
     }
 
     @Override
     public void reset() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        init();
+    }
+
+    // init() - Drop whatever is going on and read track 1 sector 1 of
+    // unit 0, as the drive does when it is initialized.
+    private void init() {
+        ++generation;
+        qxcs &= ~(QX_IE | QX_FUNC | QX_UNIT);
+        done = false;
+        error = false;
+        initializing = true;
+        state = QX_BUSY;
+        qbus.scheduleEvent(this, QX_DELAY, generation);
     }
 
     @Override
     public short read(int addr) throws Trap {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        if (addr >= QX_BOOT_BASE && addr < (QX_BOOT_BASE + (QX_BOOT_SIZE * 2))) {
+            int offset = (addr - QX_BOOT_BASE) >> 1;
+            return (offset < qx_boot_rom.length) ? qx_boot_rom[offset] : 0;
+        }
+        switch (addr - QX_BASE) {
+            case 0:
+                return (short) (qxcs | (done ? QX_DONE : 0)
+                        | (isTransferRequest() ? QX_TR : 0) | (error ? QX_ERROR : 0));
+            case 2:
+                int data = qxdb;
+                if (state == QX_EMPTYING) {
+                    nextByte();
+                }
+                return (short) data;
+            default:
+                throw new Trap(Trap.UnibusTimeout);
+        }
+    }
+
+    private boolean isTransferRequest() {
+        return (state == QX_FILLING) || (state == QX_EMPTYING)
+                || (state == QX_WANT_SECTOR) || (state == QX_WANT_TRACK);
     }
 
     @Override
-    public void write(int addr, short data) throws Trap {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void write(int addr, short shortData) throws Trap {
+        int data = ((int) shortData) & 0177777;
+        if (addr >= QX_BOOT_BASE && addr < (QX_BOOT_BASE + (QX_BOOT_SIZE * 2))) {
+            return;					// rom
+        }
+        switch (addr - QX_BASE) {
+            case 0:
+                if ((data & QX_INIT) != 0) {
+                    init();
+                    break;
+                }
+                boolean wasEnabled = (qxcs & QX_IE) != 0;
+                if ((state == QX_IDLE) || (state == QX_BUSY)) {
+                    qxcs = data & (QX_IE | QX_FUNC | QX_UNIT);
+                } else {
+                    qxcs = (qxcs & ~QX_IE) | (data & QX_IE);
+                }
+                if (((data & QX_GO) != 0) && done) {
+                    command();
+                } else if (!wasEnabled && ((qxcs & QX_IE) != 0) && done) {
+                    qbus.scheduleInterrupt(this, QX_BRLEVEL, QX_VECTOR);
+                }
+                break;
+            case 2:
+                dataWritten(data & 0377);
+                break;
+            default:
+                throw new Trap(Trap.UnibusTimeout);
+        }
     }
 
     @Override
     public void writebyte(int addr, byte data) throws Trap {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        int b = ((int) data) & 0377;
+        switch (addr - QX_BASE) {
+            case 0:
+                write(QX_BASE, (short) ((qxcs & 0177400) | b));
+                break;
+            case 1:
+                write(QX_BASE, (short) ((b << 8) | (qxcs & 0377)));
+                break;
+            case 2:
+                dataWritten(b);
+                break;
+            case 3:
+                break;
+            default:
+                if (addr >= QX_BOOT_BASE && addr < (QX_BOOT_BASE + (QX_BOOT_SIZE * 2))) {
+                    return;
+                }
+                throw new Trap(Trap.UnibusTimeout);
+        }
     }
 
+    // command() - Start the function in the control register.
+    private void command() {
+        done = false;
+        error = false;
+        count = 0;
+        switch (qxcs & QX_FUNC) {
+            case QX_FILL:
+                state = QX_FILLING;
+                break;
+            case QX_EMPTY:
+                state = QX_EMPTYING;
+                qxdb = buffer[0] & 0377;
+                break;
+            case QX_READ:
+            case QX_WRITE:
+            case QX_WRITE_DELETED:
+                state = QX_WANT_SECTOR;
+                break;
+            case QX_STATUS:
+                qxes = (qxes & (QX_ES_INIT_DONE | QX_ES_DELETED)) | readyBit();
+                finish();
+                break;
+            case QX_READ_ERROR:
+                qxdb = errorCode;
+                state = QX_IDLE;
+                done = true;
+                interrupt();
+                break;
+            default:
+                finish();
+                break;
+        }
+    }
+
+    // dataWritten() - A byte written to the data buffer register goes
+    // wherever the current function wants it.
+    private void dataWritten(int data) {
+        qxdb = data;
+        switch (state) {
+            case QX_FILLING:
+                buffer[count++] = (byte) data;
+                if (count == QX_SECTOR_SIZE) {
+                    finish();
+                }
+                break;
+            case QX_WANT_SECTOR:
+                sector = data & 037;
+                state = QX_WANT_TRACK;
+                break;
+            case QX_WANT_TRACK:
+                track = data & 0177;
+                state = QX_BUSY;
+                qbus.scheduleEvent(this, QX_DELAY, generation);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // nextByte() - The data buffer register was read while emptying the
+    // buffer, move on to the next byte.
+    private void nextByte() {
+        if (++count == QX_SECTOR_SIZE) {
+            finish();
+        } else {
+            qxdb = buffer[count] & 0377;
+        }
+    }
+
+    private int readyBit() {
+        return (units[(qxcs & QX_UNIT) >> 4].image != null) ? QX_ES_READY : 0;
+    }
+
+    // finish() - The function is done, the status goes in the data
+    // buffer register.
+    private void finish() {
+        state = QX_IDLE;
+        qxdb = qxes;
+        done = true;
+        interrupt();
+    }
+
+    private void interrupt() {
+        if ((qxcs & QX_IE) != 0) {
+            qbus.scheduleInterrupt(this, QX_BRLEVEL, QX_VECTOR);
+        }
+    }
+
+    // eventService() - The sector read or write, or the init, is done.
     @Override
     public void eventService(int data) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        if ((data != generation) || (state != QX_BUSY)) {
+            return;					// lost to an init
+        }
+        if (initializing) {
+            initializing = false;
+            qxcs &= ~QX_UNIT;
+            track = 1;
+            sector = 1;
+            transfer(QX_READ);
+            qxes |= QX_ES_INIT_DONE;
+        } else {
+            transfer(qxcs & QX_FUNC);
+        }
+        finish();
+    }
+
+    // transfer() - Move a sector between the buffer and the image.
+    private void transfer(int function) {
+        Unit u = units[(qxcs & QX_UNIT) >> 4];
+        qxes = readyBit();
+        errorCode = 0;
+        synchronized (u) {
+            if (u.image == null) {
+                fail(QX_ERR_NOT_READY);
+            } else if (track >= QX_TRACKS) {
+                fail(QX_ERR_TRACK);
+            } else if ((sector < 1) || (sector > QX_SECTORS)) {
+                fail(QX_ERR_SECTOR);
+            } else if (function == QX_READ) {
+                int s = (track * QX_SECTORS) + (sector - 1);
+                System.arraycopy(u.data, s * QX_SECTOR_SIZE, buffer, 0, QX_SECTOR_SIZE);
+                if (u.deleted[s]) {
+                    qxes |= QX_ES_DELETED;
+                }
+                ++statReads;
+            } else if (u.readOnly) {
+                fail(QX_ERR_WRITE_LOCK);
+            } else {
+                int s = (track * QX_SECTORS) + (sector - 1);
+                System.arraycopy(buffer, 0, u.data, s * QX_SECTOR_SIZE, QX_SECTOR_SIZE);
+                u.deleted[s] = (function == QX_WRITE_DELETED);
+                u.dirty[track] = true;
+                u.anyDirty = true;
+                ++statWrites;
+            }
+        }
+    }
+
+    private void fail(int code) {
+        errorCode = code;
+        error = true;
     }
 
     @Override
     public void interruptService() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
 }
@@ -24,6 +24,9 @@
  */
 package io.github.ericedwards.terakemu;
 
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.ListIterator;
 import org.slf4j.Logger;
@@ -104,6 +107,58 @@ public class Qbus implements QbusDevice {
         throw new Trap(Trap.UnibusTimeout);
     }
 
+    private QbusDeviceInfo findDevice(int addr) {
+        for (QbusDeviceInfo d : devices) {
+            if ((addr >= d.base) && (addr < (d.base + (d.size * 2)))) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    // dmaRead() - Move words from the bus into a little endian buffer,
+    // the way a DMA device would.  Runs of main memory are copied in
+    // bulk, anything else goes a word at a time.  A non-existent address
+    // throws, with the buffer position showing how far the transfer got.
+    public final void dmaRead(int addr, ByteBuffer dst, int words) throws Trap {
+        while (words > 0) {
+            QbusDeviceInfo d = findDevice(addr);
+            if (d == null) {
+                throw new Trap(Trap.UnibusTimeout);
+            }
+            if (d.device instanceof MemoryDevice) {
+                int n = Math.min(words, ((d.base + (d.size * 2)) - addr) >> 1);
+                ((MemoryDevice) d.device).readBlock(addr, dst, n);
+                addr += n * 2;
+                words -= n;
+            } else {
+                dst.putShort(d.device.read(addr));
+                addr += 2;
+                words--;
+            }
+        }
+    }
+
+    // dmaWrite() - Move words from a little endian buffer onto the bus.
+    public final void dmaWrite(int addr, ByteBuffer src, int words) throws Trap {
+        while (words > 0) {
+            QbusDeviceInfo d = findDevice(addr);
+            if (d == null) {
+                throw new Trap(Trap.UnibusTimeout);
+            }
+            if (d.device instanceof MemoryDevice) {
+                int n = Math.min(words, ((d.base + (d.size * 2)) - addr) >> 1);
+                ((MemoryDevice) d.device).writeBlock(addr, src, n);
+                addr += n * 2;
+                words -= n;
+            } else {
+                d.device.write(addr, src.getShort());
+                addr += 2;
+                words--;
+            }
+        }
+    }
+
     @Override
     public void eventService(int data) {
         // do nothing
@@ -148,15 +203,12 @@ public class Qbus implements QbusDevice {
                 CPUDevice.instance().setCurrentTime(currentTime);
             }
         }
-        ListIterator<QbusEvent> eventsIterator = events.listIterator();
-        while (eventsIterator.hasNext()) {
-            QbusEvent event = eventsIterator.next();
-            if (event.getEventTime() < currentTime) {
-                event.getDevice().eventService(event.getData());
-                eventsIterator.remove();
-            } else {
-                return;
-            }
+        // taken off the list first, so a device can schedule its next
+        // event from eventService()
+        while (!events.isEmpty()
+                && (events.get(0).getEventTime() < currentTime)) {
+            QbusEvent event = events.remove(0);
+            event.getDevice().eventService(event.getData());
         }
     }
 
@@ -215,6 +267,23 @@ public class Qbus implements QbusDevice {
                     + d.device.getClass().getName() + " "
                     + Integer.toOctalString(d.base) + " "
                     + Integer.toOctalString(d.size));
+            if (d.device instanceof DeviceStatistics) {
+                System.out.println("    "
+                        + ((DeviceStatistics) d.device).getStatistics());
+            }
+        });
+    }
+
+    // flush() - Have every device that buffers writes push them out.
+    public void flush() {
+        devices.forEach((d) -> {
+            if (d.device instanceof Flushable) {
+                try {
+                    ((Flushable) d.device).flush();
+                } catch (IOException e) {
+                    logger.error(d.name + " flush failed", e);
+                }
+            }
         });
     }
 }
@@ -25,8 +25,19 @@
 package io.github.ericedwards.terakemu;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class RLDiskDevice implements QbusDevice {
+public class RLDiskDevice implements QbusDevice, Flushable, DeviceStatistics {
+
+    static Logger logger = LoggerFactory.getLogger(RLDiskDevice.class);
 
     // Unibus interface definitions.
     private static final int RL_BASE = 0774400;		// default address
@@ -34,6 +45,8 @@ public class RLDiskDevice implements QbusDevice {
     private static final int RL_VECTOR = 0160;		// default interrupt vector
     private static final int RL_BRLEVEL = 5;		// default bus request level
     private static final int RL_DELAY = 100;		// in instructions
+    private static final int RL_CACHE = 1024;		// cached sectors
+    private static final int RL_CACHE_DIRTY = 0;	// dirty sectors held back
 
     // Control register definitions.
     private static final int RL_DRDY = 01;
@@ -77,6 +90,7 @@ public class RLDiskDevice implements QbusDevice {
     private static final int RL_BYTES_CYL = (RL_BYTES_TRACK * RL_NUM_HEADS);
     private static final int RL_SIZE_RL01 = (RL_BYTES_CYL * RL_CYL_RL01);
     private static final int RL_SIZE_RL02 = (RL_BYTES_CYL * RL_CYL_RL02);
+    private static final int RL_MAX_TRANSFER = (0200000 * 2);	// 64K words
 
     // Controller register images.
     private int csr;
@@ -88,12 +102,37 @@ public class RLDiskDevice implements QbusDevice {
     private QbusDeviceInfo info;	// generic device information
     private int drive;                  // drive number for current operation
     private RLDiskDrive[] drives;	// per drive information
-    private byte[] buffer;              // sector data buffer
+    private ByteBuffer buffer;          // transfer data buffer
+    private ByteBuffer check;           // memory to write check against
+    private boolean asyncIO;            // file I/O on the I/O thread
+    private ExecutorService executor;   // the I/O thread
+    private volatile Future<?> pendingIO;   // file I/O in progress
+    private SectorCache cache;          // shared by all drives, or null
+
+    // Transfer counts, kept by the thread doing the file I/O.
+    private volatile long statTransfers;
+    private volatile long statSectors;
+
+    // Current transfer, set on the CPU thread before the file I/O starts.
+    private int transferFunction;       // RL_RCOM, RL_WCOM, ...
+    private int transferAddr;
+    private int transferWords;
+    private int transferOffset;
+    private MediaImage transferImage;
+    private long transferDue;           // earliest completion time
+    private int transferGeneration;     // bumped by reset()
+    private boolean transferNxm;
+    private boolean transferHnf;        // set on the I/O thread
 
     public RLDiskDevice() {
         this(RL_BASE, RL_SIZE, "");
     }
 
+    // RLDiskDevice() - Options are io=sync to do the file I/O on the CPU
+    // thread, cache=N for the sectors cached (0 for no cache) and dirty=N
+    // for the written sectors it may hold back.  By default it holds none
+    // back, writes go straight through to the image; with dirty=N a host
+    // crash loses writes the guest was told were done.
     public RLDiskDevice(int base, int size, String options) {
         info = new QbusDeviceInfo(this, base, size, "RL11", false);
         csr = RL_CRDY;
@@ -102,46 +141,122 @@ public class RLDiskDevice implements QbusDevice {
         mpr = 0;
         drive = 0;
         drives = new RLDiskDrive[MAX_RL];
-        buffer = new byte[RL_BYTES_SECTOR];
+        buffer = ByteBuffer.allocate(RL_MAX_TRANSFER).order(ByteOrder.LITTLE_ENDIAN);
+        DeviceOptions opts = new DeviceOptions(options);
+        asyncIO = !opts.get("io", "async").equals("sync");
+        int sectors = opts.getInt("cache", RL_CACHE);
+        if (sectors > 0) {
+            cache = new SectorCache(RL_BYTES_SECTOR, sectors,
+                    opts.getInt("dirty", RL_CACHE_DIRTY));
+        }
+        if (asyncIO) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RL11 I/O");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
         for (int i = 0; i < drives.length; ++i) {
             drives[i] = new RLDiskDrive();
             drives[i].setExists(RLDiskDrive.RL_TYPE_NORL);
             drives[i].setCylinder(0);
             drives[i].setHead(0);
             drives[i].setError(false);
-            drives[i].setFile(null);        // force the issue
+            drives[i].setImage(null);       // force the issue
+            drives[i].setTiming(new RLTiming(new DeviceOptions(""), RL_DELAY));
         }
         Qbus.instance().registerDevice(info);
     }
 
     public void assign(int unit, String path) throws java.io.IOException {
+        assign(unit, path, "");
+    }
+
+    // assign() - Attach an image to a drive.  The options pick how the
+    // image is kept, e.g. "mmap,flush=periodic" (see MappedImage), and
+    // the drive's timing (see RLTiming).  The controller's sector cache,
+    // if it has one, sits in front of the image; with the journal option
+    // it writes through, so the journal sees the guest's writes as they
+    // happen and in order.
+    public void assign(int unit, String path, String options)
+            throws java.io.IOException {
         if ((unit >= 0) && (unit < drives.length)) {
+            DeviceOptions opts = new DeviceOptions(options);
+            RLTiming timing = new RLTiming(opts, RL_DELAY);
+            detach(unit);
+            MediaImage image = MediaImage.open(path, opts);
             RLDiskDrive drive = drives[unit];
-            if (drive.getFile() != null) {
-                drive.getFile().close();
-            }
-            drive.setExists(RLDiskDrive.RL_TYPE_NORL);
-            drive.setFile(new RandomAccessFile(path, "rw"));
-            if (drive.getFile().length() == RL_SIZE_RL01) {
+            if (image.length() == RL_SIZE_RL01) {
                 drive.setExists(RLDiskDrive.RL_TYPE_RL01);
-            } else if (drive.getFile().length() == RL_SIZE_RL02) {
+            } else if (image.length() == RL_SIZE_RL02) {
                 drive.setExists(RLDiskDrive.RL_TYPE_RL02);
             } else {
-                drive.getFile().close();
+                image.close();
                 throw new java.io.IOException();
             }
+            if (cache != null) {
+                image = new CachedImage(image, cache, unit, opts.has("journal"));
+            }
+            drive.setImage(image);
+            drive.setTiming(timing);
         } else {
             throw new java.io.IOException();
         }
     }
 
+    // detach() - Flush and close a drive's image, the drive goes away.
+    public void detach(int unit) throws java.io.IOException {
+        if ((unit >= 0) && (unit < drives.length)) {
+            waitForIO();
+            RLDiskDrive drive = drives[unit];
+            MediaImage image = drive.getImage();
+            drive.setExists(RLDiskDrive.RL_TYPE_NORL);
+            drive.setImage(null);
+            if (image != null) {
+                image.flush();
+                image.close();
+            }
+        } else {
+            throw new java.io.IOException();
+        }
+    }
+
+    // flush() - Write anything the cache is holding back to the images.
+    public void flush() throws java.io.IOException {
+        for (int i = 0; i < drives.length; ++i) {
+            MediaImage image = drives[i].getImage();
+            if (image != null) {
+                image.flush();
+            }
+        }
+    }
+
+    public String getStatistics() {
+        String s = "transfers " + statTransfers
+                + " sectors " + statSectors;
+        if (cache == null) {
+            return s + ", no cache";
+        }
+        return s + ", cache hits " + cache.getHits()
+                + " misses " + cache.getMisses()
+                + " writebacks " + cache.getWritebacks()
+                + " in " + cache.getWrites() + " writes"
+                + " evictions " + cache.getEvictions();
+    }
+
+    // makedisk() - Make an empty RL01, or an RL02 with the "rl02" option.
+    // With "compressed" the image is a CompressedImage, which is made at
+    // once however big the disk; otherwise it is a sparse file.
     public void makedisk(String path, String options) throws java.io.IOException {
-        FileOutputStream f = new FileOutputStream(path, false);
-        byte[] b = new byte[256];
-        for (int i = 0; i < (RL_SIZE_RL01 / RL_BYTES_SECTOR); ++i) {
-            f.write(b);
+        DeviceOptions opts = new DeviceOptions(options);
+        int size = opts.has("rl02") ? RL_SIZE_RL02 : RL_SIZE_RL01;
+        if (opts.has("compressed")) {
+            CompressedImage.create(path, size, CompressedImage.DEFAULT_BLOCK);
+            return;
         }
-        f.close();
+        MakeDisks.makeDisk(path, size);
     }
 
     // read() - Handle the reading of an RL11 register.	This is
@@ -203,8 +318,27 @@ public class RLDiskDevice implements QbusDevice {
         throw new Trap(Trap.Unimplemented);
     }
 
-    // reset()
+    // reset() - Anything still on the I/O thread finishes, but its
+    // completion is ignored, and the transfer is forgotten so a later
+    // command's event can't complete it.  Cached writes go out to the
+    // images, but aren't forced to the disk, the guest's RESET shouldn't
+    // wait for that.
     public void reset() {
+        ++transferGeneration;
+        waitForIO();
+        transferImage = null;
+        transferFunction = RL_NOP;
+        transferAddr = 0;
+        transferWords = 0;
+        transferNxm = false;
+        transferHnf = false;
+        if (cache != null) {
+            try {
+                cache.flush();
+            } catch (IOException e) {
+                logger.error("RL11 write back failed", e);
+            }
+        }
         csr = RL_CRDY;
         bar = 0;
         dar = 0;
@@ -242,32 +376,46 @@ public class RLDiskDevice implements QbusDevice {
                     delay = 0;								// finish quickly
                     break;
                 case RL_SEEK:
+                    int from = drives[drive].getCylinder();
                     drives[drive].setError(doSeek());
+                    delay = drives[drive].getTiming().seek(
+                            Math.abs(drives[drive].getCylinder() - from),
+                            maxCylinder());
                     break;
                 case RL_RDHEAD:
                     mpr = drives[drive].getCylinder() << 7;
                     mpr |= drives[drive].getHead() << 6;
                     drives[drive].setError(false);
+                    delay = drives[drive].getTiming().header(
+                            CPUDevice.instance().getCurrentTime());
                     break;
                 case RL_RCOM:
-                    drives[drive].setError(doReadWrite(false));
-                    break;
                 case RL_WCOM:
-                    drives[drive].setError(doReadWrite(true));
-                    break;
                 case RL_WRCK:
                 case RL_RDNOCK:
+                    if (startTransfer(csr & 016)) {
+                        drives[drive].setError(true);
+                        break;
+                    }
+                    return;						// finishTransfer() schedules the end
                 default:
                     delay = 0;								// unsupported command
                     break;
             }
         }
-        Qbus.instance().scheduleEvent(this, delay, 0);
+        Qbus.instance().scheduleEvent(this, delay, transferGeneration);
     }
 
     // eventService() - Finish the current command.	Set the error bits and
-    // mark the controller ready.
+    // mark the controller ready.  Events from before a reset are dropped.
     public void eventService(int data) {
+        if (data != transferGeneration) {
+            return;
+        }
+        if (transferImage != null) {
+            drives[drive].setError(completeTransfer());
+            transferImage = null;
+        }
         if (drives[drive].isError()) {
             csr |= RL_DE;
             csr &= ~RL_DRDY;
@@ -287,17 +435,19 @@ public class RLDiskDevice implements QbusDevice {
     public void interruptService() {
     }
 
+    private int maxCylinder() {
+        if (drives[drive].getExists() == RLDiskDrive.RL_TYPE_RL01) {
+            return RL_CYL_RL01;
+        }
+        return RL_CYL_RL02;
+    }
+
     // doSeek() - Do the mechanics of a controller seek command.	Return
     // non-zero on any kind of failure.
     private boolean doSeek() {
-        int max;
+        int max = maxCylinder();
         drives[drive].setHead((dar >> 4) & 1);
         int diff = (dar >> 7);
-        if (drives[drive].getExists() == RLDiskDrive.RL_TYPE_RL01) {
-            max = RL_CYL_RL01;
-        } else {
-            max = RL_CYL_RL02;
-        }
         if ((dar & 04) != 0) {
             if ((drives[drive].getCylinder() + diff) >= max) {
                 return true;
@@ -314,64 +464,164 @@ public class RLDiskDevice implements QbusDevice {
         return false;
     }
 
-    // doReadWrite() - Do a read or write by simulating DMA and doing
-    // file I/O to the disk file.
-    private boolean doReadWrite(boolean write) {
-        if (drives[drive].getCylinder() != (dar >> 7)) {
-            csr |= RL_HNF;
-            return true;
-        }
-        if (drives[drive].getHead() != ((dar >> 6) & 1)) {
-            csr |= RL_HNF;
-            return true;
+    // startTransfer() - Check the disk address and start a read, write,
+    // write check or read without header check.  Write data is taken from
+    // memory here, on the CPU thread, and the file I/O is handed to the I/O
+    // thread; what was read goes to memory, or is compared with it, when
+    // the command finishes.  Return true on any kind of failure.
+    private boolean startTransfer(int function) {
+        if (function != RL_RDNOCK) {
+            if (drives[drive].getCylinder() != (dar >> 7)) {
+                csr |= RL_HNF;
+                return true;
+            }
+            if (drives[drive].getHead() != ((dar >> 6) & 1)) {
+                csr |= RL_HNF;
+                return true;
+            }
         }
         int sector = dar & 077;
-        int addr = bar + ((csr & 060) << 12);
         int count = (0177777 - mpr) + 1;
         if (sector >= RL_NUM_SECT) {
             csr |= RL_HNF;
             return true;
         }
-        int offset = ((drives[drive].getCylinder() * RL_BYTES_CYL)
+        waitForIO();
+        transferFunction = function;
+        transferAddr = bar + ((csr & 060) << 12);
+        transferWords = count;
+        transferOffset = ((drives[drive].getCylinder() * RL_BYTES_CYL)
                 + (drives[drive].getHead() * RL_BYTES_TRACK)
                 + (sector * RL_BYTES_SECTOR));
-        try {
-            drives[drive].getFile().seek(offset);
-        } catch (IOException e) {
-            csr |= RL_HNF;
-            return true;
+        transferImage = drives[drive].getImage();
+        transferNxm = false;
+        transferHnf = false;
+        long now = CPUDevice.instance().getCurrentTime();
+        transferDue = now + drives[drive].getTiming().transfer(now, sector, count);
+        buffer.clear();
+        if (function == RL_WCOM) {
+            try {
+                Qbus.instance().dmaRead(transferAddr, buffer, count);
+            } catch (Trap e) {
+                // only the sectors filled before the bad address get written
+                transferNxm = true;
+                transferWords = (buffer.position() / RL_BYTES_SECTOR)
+                        * RL_WORDS_SECTOR;
+            }
         }
-        int temp;
-        Qbus qbus = Qbus.instance();
+        final int generation = transferGeneration;
+        if (asyncIO) {
+            pendingIO = executor.submit(new Runnable() {
+                public void run() {
+                    transfer();
+                    finishTransfer(generation);
+                }
+            });
+        } else {
+            transfer();
+            finishTransfer(generation);
+        }
+        return false;
+    }
+
+    // transfer() - Do the file I/O for the current transfer, all of it
+    // in one call.  A short last sector is written padded with zeros, as
+    // the RL11 does.  The words actually moved are left in transferWords.
+    private void transfer() {
+        int sectors = (transferWords + RL_WORDS_SECTOR - 1) / RL_WORDS_SECTOR;
+        statTransfers++;
+        if (sectors == 0) {
+            return;                         // NXM on the first word
+        }
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        data.clear().limit(sectors * RL_BYTES_SECTOR);
         try {
-            while (count != 0) {
-                if (write) {
-                    for (int i = 0; (i < RL_BYTES_SECTOR) && (count != 0); count--) {
-                        temp = qbus.read(addr);
-                        buffer[i] = (byte) (temp & 0xff);
-                        buffer[i + 1] = (byte) (temp >> 8);
-                        addr += 2;
-                        i += 2;
-                    }
-                    drives[drive].getFile().write(buffer);
-                } else {
-                    drives[drive].getFile().readFully(buffer);
-                    for (int i = 0; (i < RL_BYTES_SECTOR) && (count != 0); count--) {
-                        temp = buffer[i + 1] << 8;
-                        temp += ((int) buffer[i]) & 0xff;
-                        qbus.write(addr, (short) temp);
-                        addr += 2;
-                        i += 2;
-                    }
+            if (transferFunction == RL_WCOM) {
+                data.position(transferWords * 2);
+                while (data.hasRemaining()) {
+                    data.put((byte) 0);
                 }
+                data.flip();
+                transferImage.write(transferOffset, data);
+            } else {
+                transferImage.read(transferOffset, data);
             }
-        } catch (Trap e) {
+        } catch (IOException e) {
+            // keep the whole sectors that made it
+            transferHnf = true;
+            transferWords = Math.min(transferWords,
+                    (data.position() / RL_BYTES_SECTOR) * RL_WORDS_SECTOR);
+        }
+        statSectors += sectors;
+    }
+
+    // finishTransfer() - Post the end of the command back to the CPU, no
+    // sooner than the drive's timing says the transfer takes.
+    private void finishTransfer(int generation) {
+        long delay = transferDue - CPUDevice.instance().getCurrentTime();
+        Qbus.instance().scheduleEvent(this, (int) Math.max(delay, 0),
+                generation);
+    }
+
+    // completeTransfer() - Move read data into memory and set the error
+    // bits, on the CPU thread.  Return true on any kind of failure.
+    private boolean completeTransfer() {
+        if ((transferFunction == RL_RCOM) || (transferFunction == RL_RDNOCK)) {
+            buffer.clear();
+            try {
+                Qbus.instance().dmaWrite(transferAddr, buffer, transferWords);
+            } catch (Trap e) {
+                transferNxm = true;
+            }
+        } else if ((transferFunction == RL_WRCK) && !transferHnf
+                && !transferNxm) {
+            // only what was really read is compared, an I/O error is HNF
+            if (!writeCheck() && !transferNxm) {
+                csr |= RL_DCRC;					// write check error
+                return true;
+            }
+        }
+        if (transferNxm) {
             csr |= RL_NXM;
             return true;
-        } catch (IOException e) {
+        }
+        if (transferHnf) {
             csr |= RL_HNF;
             return true;
         }
         return false;
     }
-}
\ No newline at end of file
+
+    // writeCheck() - Compare what was read with memory, in bulk.  Return
+    // false on a mismatch; an NXM is left in transferNxm.
+    private boolean writeCheck() {
+        if (check == null) {
+            check = ByteBuffer.allocate(RL_MAX_TRANSFER).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        check.clear();
+        try {
+            Qbus.instance().dmaRead(transferAddr, check, transferWords);
+        } catch (Trap e) {
+            transferNxm = true;
+        }
+        check.flip();
+        ByteBuffer disk = buffer.duplicate();
+        disk.clear().limit(check.limit());
+        return disk.equals(check);
+    }
+
+    // waitForIO() - Wait for the I/O thread to finish with the buffer.
+    private void waitForIO() {
+        Future<?> io = pendingIO;
+        if (io != null) {
+            try {
+                io.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.error("RL11 transfer failed", e.getCause());
+            }
+            pendingIO = null;
+        }
+    }
+}
@@ -24,8 +24,6 @@
  */
 package io.github.ericedwards.terakemu;
 
-import java.io.RandomAccessFile;
-
 public class RLDiskDrive {
 
     public static final int RL_TYPE_NORL = 0;   // no drive
@@ -36,7 +34,8 @@ public class RLDiskDrive {
     private int cylinder;		// current cylinder
     private int head;			// current head
     private boolean error;		// drive in error
-    private RandomAccessFile file;	// where the data lives
+    private MediaImage image;		// where the data lives
+    private RLTiming timing;		// how long things take
 
     public RLDiskDrive() {
     }
@@ -73,12 +72,20 @@ public class RLDiskDrive {
         this.error = error;
     }
 
-    public RandomAccessFile getFile() {
-        return file;
+    public MediaImage getImage() {
+        return image;
+    }
+
+    public void setImage(MediaImage image) {
+        this.image = image;
+    }
+
+    public RLTiming getTiming() {
+        return timing;
     }
 
-    public void setFile(RandomAccessFile file) {
-        this.file = file;
+    public void setTiming(RLTiming timing) {
+        this.timing = timing;
     }
 
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * RLTiming.java - How long an RL01/RL02 drive takes to do things.
+ *
+ * Delays are in instructions, the unit of virtual time.  The model is
+ * picked per drive with the timing option:
+ *
+ *     timing=flat         every command takes the controller's fixed delay
+ *     timing=turbo        everything finishes at once
+ *     timing=realistic    seeks take time by distance, transfers wait for
+ *                         the sector to come round and then for the data
+ *     timing=calibrated   realistic, multiplied by scale=<factor>
+ *
+ * Realistic time is turned into instructions with ipms=<n>, the
+ * instructions the emulated CPU does per millisecond.
+ */
+package io.github.ericedwards.terakemu;
+
+public class RLTiming {
+
+    public static final int FLAT = 0;
+    public static final int TURBO = 1;
+    public static final int REALISTIC = 2;
+    public static final int CALIBRATED = 3;
+
+    // Drive mechanics, in microseconds.
+    private static final int RL_REVOLUTION = 25000;     // 2400 rpm
+    private static final int RL_SECTORS = 40;
+    private static final int RL_SECTOR_TIME = (RL_REVOLUTION / RL_SECTORS);
+    private static final int RL_SEEK_MIN = 6000;        // one cylinder
+    private static final int RL_SEEK_MAX = 100000;      // full stroke
+    private static final int RL_WORDS_SECTOR = 128;
+    private static final int DEFAULT_IPMS = 500;
+
+    private final int model;
+    private final int flatDelay;
+    private final double scale;
+    private final int ipms;
+
+    public RLTiming(DeviceOptions options, int flatDelay) {
+        String name = options.get("timing", "flat");
+        if (name.equals("flat")) {
+            model = FLAT;
+        } else if (name.equals("turbo")) {
+            model = TURBO;
+        } else if (name.equals("realistic")) {
+            model = REALISTIC;
+        } else if (name.equals("calibrated")) {
+            model = CALIBRATED;
+        } else {
+            throw new IllegalArgumentException("bad timing option: " + name);
+        }
+        this.flatDelay = flatDelay;
+        try {
+            scale = Double.parseDouble(options.get("scale", "1"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad scale option: "
+                    + options.get("scale", ""));
+        }
+        ipms = options.getInt("ipms", DEFAULT_IPMS);
+        if ((scale < 0) || (ipms <= 0)) {
+            throw new IllegalArgumentException("bad timing options");
+        }
+    }
+
+    public int getModel() {
+        return model;
+    }
+
+    // delay() - A mechanical time turned into instructions, or the fixed
+    // delay for the simple models.
+    private int delay(long micros) {
+        switch (model) {
+            case TURBO:
+                return 0;
+            case REALISTIC:
+                return (int) ((micros * ipms) / 1000);
+            case CALIBRATED:
+                return (int) (((micros * ipms) / 1000) * scale);
+            default:
+                return flatDelay;
+        }
+    }
+
+    // micros() - Virtual time as microseconds.
+    private long micros(long now) {
+        return (now * 1000) / ipms;
+    }
+
+    // seek() - Time to move the heads some number of cylinders.
+    public int seek(int cylinders, int maxCylinders) {
+        long t = 0;
+        if (cylinders > 0) {
+            t = RL_SEEK_MIN + (((long) (cylinders - 1)
+                    * (RL_SEEK_MAX - RL_SEEK_MIN)) / (maxCylinders - 1));
+        }
+        return delay(t);
+    }
+
+    // header() - Time until the next sector header passes the heads.
+    public int header(long now) {
+        long position = micros(now) % RL_SECTOR_TIME;
+        return delay(RL_SECTOR_TIME - position);
+    }
+
+    // transfer() - Time to wait for a sector to come round and then
+    // read or write some words starting there.
+    public int transfer(long now, int sector, int words) {
+        long position = micros(now) % RL_REVOLUTION;
+        long start = (long) sector * RL_SECTOR_TIME;
+        long wait = ((start - position) + RL_REVOLUTION) % RL_REVOLUTION;
+        int sectors = (words + RL_WORDS_SECTOR - 1) / RL_WORDS_SECTOR;
+        return delay(wait + ((long) sectors * RL_SECTOR_TIME));
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * ScriptedConsole.java - A terminal driven by a program.
+ *
+ * For running install and build scripts through a console with no
+ * person or socket involved:
+ *
+ *     ScriptedConsole console = new ScriptedConsole(kl);
+ *     kl.addTerminal(console);
+ *     console.waitFor("login: ", 50000000);
+ *     console.inject("root\r");
+ *
+ * Injected characters are queued by the host, so they reach the guest
+ * as fast as it reads them.  waitFor() is expect-style: it looks for a
+ * regular expression in the output since the last match, and gives up
+ * once the CPU has run the given number of instructions, so the timeout
+ * means the same however fast the emulator is going.  If the CPU isn't
+ * running it waits for ever.  Each look only searches the new output and
+ * the 1K before it, so a match can't be longer than that.  The most recent output, 64K of it unless
+ * the constructor says otherwise, is kept for getCapture().
+ */
+package io.github.ericedwards.terakemu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ScriptedConsole implements SerialTerminal {
+
+    private static final int CAPTURE_SIZE = 65536;
+    private static final int WAIT_MS = 10;	// between looks at the time
+    private static final int LOOKBACK = 1024;	// longest match
+
+    private final SerialHost host;
+    private final byte[] capture;
+    private long captured;			// bytes ever captured
+    private final StringBuilder unmatched = new StringBuilder();
+    private long dropped;			// gone from the front of unmatched
+
+    public ScriptedConsole(SerialHost host) {
+        this(host, CAPTURE_SIZE);
+    }
+
+    public ScriptedConsole(SerialHost host, int captureSize) {
+        this.host = host;
+        capture = new byte[Math.max(captureSize, 1)];
+    }
+
+    @Override
+    public synchronized void sendToTerminal(int c) {
+        capture[(int) (captured % capture.length)] = (byte) c;
+        ++captured;
+        unmatched.append((char) (c & 0377));
+        trim();
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void sendToTerminal(byte[] b, int offset, int length) {
+        int skip = Math.max(length - capture.length, 0);
+        captured += skip;
+        for (int i = skip; i < length; ) {
+            int at = (int) (captured % capture.length);
+            int n = Math.min(length - i, capture.length - at);
+            System.arraycopy(b, offset + i, capture, at, n);
+            captured += n;
+            i += n;
+        }
+        for (int i = 0; i < length; ++i) {
+            unmatched.append((char) (b[offset + i] & 0377));
+        }
+        trim();
+        notifyAll();
+    }
+
+    // trim() - Cut the unmatched output back to what is captured, once
+    // it is twice that, so the cost of the copy is spread out.
+    private void trim() {
+        int excess = unmatched.length() - capture.length;
+        if (excess > capture.length) {
+            unmatched.delete(0, excess);
+            dropped += excess;
+        }
+    }
+
+    // inject() - Type at the guest.  Returns once the host has queued it
+    // all, which may mean waiting for the guest to read some.
+    public void inject(byte[] b, int offset, int length) {
+        host.receiveFromTerminal(b, offset, length);
+    }
+
+    public void inject(String s) {
+        byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+        inject(b, 0, b.length);
+    }
+
+    public String waitFor(String regex, long instructions)
+            throws TimeoutException, InterruptedException {
+        return waitFor(Pattern.compile(regex), instructions);
+    }
+
+    // waitFor() - Wait for output matching the pattern, and return the
+    // matching text.  The next wait starts after it.
+    public synchronized String waitFor(Pattern pattern, long instructions)
+            throws TimeoutException, InterruptedException {
+        CPUDevice cpu = CPUDevice.instance();
+        long deadline = cpu.getCurrentTime() + instructions;
+        long searched = dropped;		// searched up to here, no match
+        while (true) {
+            int from = (int) Math.max(searched - dropped - LOOKBACK, 0);
+            Matcher m = pattern.matcher(unmatched);
+            m.useTransparentBounds(true).useAnchoringBounds(false);
+            m.region(from, unmatched.length());
+            if (m.find()) {
+                String match = m.group();
+                unmatched.delete(0, m.end());
+                dropped += m.end();
+                return match;
+            }
+            searched = dropped + unmatched.length();
+            if (cpu.getCurrentTime() >= deadline) {
+                throw new TimeoutException("no " + pattern.pattern()
+                        + " in " + instructions + " instructions");
+            }
+            wait(WAIT_MS);
+        }
+    }
+
+    // getCapture() - The most recent output, oldest first.
+    public synchronized String getCapture() {
+        int length = (int) Math.min(captured, capture.length);
+        int start = (int) ((captured - length) % capture.length);
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            s.append((char) (capture[(start + i) % capture.length] & 0377));
+        }
+        return s.toString();
+    }
+
+    // getCaptured() - How many bytes have been output, all told.
+    public synchronized long getCaptured() {
+        return captured;
+    }
+
+    // clear() - Forget the output so far, for capture and matching.
+    public synchronized void clear() {
+        captured = 0;
+        dropped += unmatched.length();
+        unmatched.setLength(0);
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * SectorCache.java - Write-back cache of disk sectors.
+ *
+ * Sectors are kept in one direct buffer allocated up front, so a
+ * cached transfer is a copy and the cache adds nothing to the heap.
+ * Slots are reused in CLOCK order.  Written sectors stay in the cache
+ * until more than the dirty limit are waiting when the writer calls
+ * limitDirty(), until they are pushed out, or until flush() is called;
+ * runs of adjacent dirty sectors go back to the image in a single write.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class SectorCache {
+
+    private final int sectorBytes;
+    private final int slots;
+    private final int dirtyLimit;
+    private final ByteBuffer slab;
+    private final HashMap<Long, Integer> index;
+
+    // per slot state
+    private final long[] keys;
+    private final MediaImage[] owners;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+
+    private int hand;
+    private int used;
+    private int dirtyCount;
+
+    private long hits;
+    private long misses;
+    private long writebacks;
+    private long writes;                // image writes the writebacks took
+    private long evictions;
+
+    public SectorCache(int sectorBytes, int slots, int dirtyLimit) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("bad cache size: " + slots);
+        }
+        this.sectorBytes = sectorBytes;
+        this.slots = slots;
+        this.dirtyLimit = dirtyLimit;
+        slab = ByteBuffer.allocateDirect(sectorBytes * slots);
+        index = new HashMap<>();
+        keys = new long[slots];
+        owners = new MediaImage[slots];
+        referenced = new boolean[slots];
+        dirty = new boolean[slots];
+        hand = 0;
+        used = 0;
+        dirtyCount = 0;
+    }
+
+    public int getSectorBytes() {
+        return sectorBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getWritebacks() {
+        return writebacks;
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // key() - Units share the cache, sectors are numbered within a unit.
+    private static long key(int unit, long sector) {
+        return ((long) unit << 48) | sector;
+    }
+
+    private static int unitOf(long key) {
+        return (int) (key >>> 48);
+    }
+
+    // slot() - A view of part of one slot.
+    private ByteBuffer slot(int n, int from, int length) {
+        ByteBuffer b = slab.duplicate();
+        b.position((n * sectorBytes) + from);
+        b.limit((n * sectorBytes) + from + length);
+        return b;
+    }
+
+    public synchronized boolean contains(int unit, long sector) {
+        return index.containsKey(key(unit, sector));
+    }
+
+    // get() - Copy length bytes, starting from bytes into the sector,
+    // to dst.  Returns false, copying nothing, if the sector isn't here.
+    public synchronized boolean get(int unit, long sector, ByteBuffer dst,
+            int from, int length) {
+        Integer n = index.get(key(unit, sector));
+        if (n == null) {
+            return false;
+        }
+        ++hits;
+        referenced[n] = true;
+        dst.put(slot(n, from, length));
+        return true;
+    }
+
+    // update() - Copy length bytes from src into part of a cached sector
+    // and mark it dirty.  Returns false if the sector isn't here.
+    public synchronized boolean update(int unit, long sector, ByteBuffer src,
+            int from, int length) {
+        Integer n = index.get(key(unit, sector));
+        if (n == null) {
+            return false;
+        }
+        ByteBuffer s = src.duplicate();
+        s.limit(s.position() + length);
+        slot(n, from, length).put(s);
+        src.position(src.position() + length);
+        referenced[n] = true;
+        markDirty(n);
+        return true;
+    }
+
+    // put() - Enter a whole sector, taken from src.  A clean sector has
+    // just been read from the owner; a dirty one is new data for it.
+    public synchronized void put(int unit, MediaImage owner, long sector,
+            ByteBuffer src, boolean isDirty) throws IOException {
+        long k = key(unit, sector);
+        Integer n = index.get(k);
+        if (n == null) {
+            n = allocate();
+            index.put(k, n);
+            keys[n] = k;
+            owners[n] = owner;
+            dirty[n] = false;
+        }
+        ByteBuffer s = src.duplicate();
+        s.limit(s.position() + sectorBytes);
+        slot(n, 0, sectorBytes).put(s);
+        src.position(src.position() + sectorBytes);
+        referenced[n] = true;
+        if (isDirty) {
+            markDirty(n);
+        } else {
+            ++misses;
+        }
+    }
+
+    // markDirty() - The limit isn't checked here, a writer enters all
+    // the sectors of a transfer first so that writeBack() can merge them.
+    private void markDirty(int n) {
+        if (!dirty[n]) {
+            dirty[n] = true;
+            ++dirtyCount;
+        }
+    }
+
+    // limitDirty() - Write back if more than the dirty limit are waiting.
+    public synchronized void limitDirty() throws IOException {
+        if (dirtyCount > dirtyLimit) {
+            writeBack(-1);
+        }
+    }
+
+    // allocate() - Find a free slot, pushing out the first one in CLOCK
+    // order that hasn't been used since the hand last went by.
+    private int allocate() throws IOException {
+        if (used < slots) {
+            return used++;
+        }
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % slots;
+        }
+        int n = hand;
+        hand = (hand + 1) % slots;
+        if (dirty[n]) {
+            ByteBuffer b = slot(n, 0, sectorBytes);
+            owners[n].write((keys[n] & 0xffffffffffffL) * sectorBytes, b);
+            dirty[n] = false;
+            --dirtyCount;
+            ++writebacks;
+            ++writes;
+        }
+        if (owners[n] != null) {           // not already invalidated
+            index.remove(keys[n]);
+            owners[n] = null;
+            ++evictions;
+        }
+        return n;
+    }
+
+    // writeBack() - Write the dirty sectors of one unit, or of all units
+    // for -1, merging adjacent sectors into one write.
+    private void writeBack(int unit) throws IOException {
+        List<Integer> list = new ArrayList<>();
+        for (int n = 0; n < used; ++n) {
+            if (dirty[n] && ((unit < 0) || (unitOf(keys[n]) == unit))) {
+                list.add(n);
+            }
+        }
+        list.sort((a, b) -> Long.compare(keys[a], keys[b]));
+        int i = 0;
+        while (i < list.size()) {
+            int j = i + 1;
+            while ((j < list.size())
+                    && (keys[list.get(j)] == (keys[list.get(i)] + (j - i)))) {
+                ++j;
+            }
+            ByteBuffer run = ByteBuffer.allocate((j - i) * sectorBytes);
+            for (int k = i; k < j; ++k) {
+                run.put(slot(list.get(k), 0, sectorBytes));
+            }
+            run.flip();
+            int first = list.get(i);
+            owners[first].write((keys[first] & 0xffffffffffffL) * sectorBytes, run);
+            ++writes;
+            for (int k = i; k < j; ++k) {
+                dirty[list.get(k)] = false;
+                --dirtyCount;
+                ++writebacks;
+            }
+            i = j;
+        }
+    }
+
+    public synchronized void flush(int unit) throws IOException {
+        writeBack(unit);
+    }
+
+    public synchronized void flush() throws IOException {
+        writeBack(-1);
+    }
+
+    // invalidate() - Forget a unit's sectors, dirty or not.
+    public synchronized void invalidate(int unit) {
+        for (int n = 0; n < used; ++n) {
+            if ((owners[n] != null) && (unitOf(keys[n]) == unit)) {
+                index.remove(keys[n]);
+                owners[n] = null;
+                referenced[n] = false;
+                if (dirty[n]) {
+                    dirty[n] = false;
+                    --dirtyCount;
+                }
+            }
+        }
+    }
+
+}
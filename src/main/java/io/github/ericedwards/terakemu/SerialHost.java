@@ -3,5 +3,13 @@ package io.github.ericedwards.terakemu;
 public interface SerialHost {
     
     public void receiveFromTerminal(int i);
-    
+
+    // receiveFromTerminal() - Several characters at once, hosts that can
+    // queue them take them in one go.
+    public default void receiveFromTerminal(byte[] b, int offset, int length) {
+        for (int i = 0; i < length; ++i) {
+            receiveFromTerminal(b[offset + i] & 0377);
+        }
+    }
+
 }
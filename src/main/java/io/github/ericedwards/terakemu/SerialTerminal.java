@@ -1,7 +1,39 @@
 package io.github.ericedwards.terakemu;
 
+import java.awt.GraphicsEnvironment;
+
 public interface SerialTerminal {
     
     public void sendToTerminal(int i);
-    
+
+    // sendToTerminal() - Several characters at once, terminals that can
+    // write them in one go do.
+    public default void sendToTerminal(byte[] b, int offset, int length) {
+        for (int i = 0; i < length; ++i) {
+            sendToTerminal(b[offset + i] & 0377);
+        }
+    }
+
+    // create() - The kind of terminal asked for: swing (a window),
+    // headless (a TerminalScreen, nothing displayed), stdio (standard
+    // input and output) or none, which returns null.  With no display
+    // swing falls back to headless.
+    public static SerialTerminal create(String kind, SerialHost host) {
+        switch (kind) {
+            case "swing":
+                if (GraphicsEnvironment.isHeadless()) {
+                    return new TerminalScreen();
+                }
+                return new TerminalGUI(host);
+            case "headless":
+                return new TerminalScreen();
+            case "stdio":
+                return new StdioTerminal(host);
+            case "none":
+                return null;
+            default:
+                throw new IllegalArgumentException("unknown terminal " + kind);
+        }
+    }
+
 }
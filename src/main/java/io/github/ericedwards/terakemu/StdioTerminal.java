@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * StdioTerminal.java - The console on standard input and output.
+ *
+ * Output is written straight to standard output and whatever arrives on
+ * standard input is typed at the guest.  If standard input is a tty it
+ * is put in raw mode, with no echo, and put back as it was at exit.
+ * Standard input is then the guest's, so with terakemu.terminal=stdio
+ * PDPCafe boots the guest without the command line.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class StdioTerminal implements SerialTerminal {
+
+    static Logger logger = LoggerFactory.getLogger(StdioTerminal.class);
+
+    private final SerialHost host;
+    private final OutputStream out = new FileOutputStream(FileDescriptor.out);
+
+    public StdioTerminal(SerialHost host) {
+        this.host = host;
+        if (System.console() != null) {
+            rawMode();
+        }
+        Thread t = new Thread(this::input, "stdio terminal input");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // rawMode() - Have stty set the tty up, and put it back at exit.
+    private void rawMode() {
+        try {
+            String saved = stty("-g").trim();
+            stty("raw", "-echo");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    stty(saved);
+                } catch (IOException | InterruptedException e) {
+                    // nothing more to do
+                }
+            }));
+        } catch (IOException | InterruptedException e) {
+            logger.warn("can't put the terminal in raw mode", e);
+        }
+    }
+
+    private static String stty(String... args)
+            throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "stty";
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process p = new ProcessBuilder(command)
+                .redirectInput(ProcessBuilder.Redirect.INHERIT).start();
+        byte[] output = readAll(p.getInputStream());
+        if (p.waitFor() != 0) {
+            throw new IOException("stty failed");
+        }
+        return new String(output, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            b.write(buffer, 0, n);
+        }
+        return b.toByteArray();
+    }
+
+    private void input() {
+        byte[] b = new byte[256];
+        try {
+            int n;
+            while ((n = System.in.read(b)) > 0) {
+                host.receiveFromTerminal(b, 0, n);
+            }
+        } catch (IOException e) {
+            logger.error("stdio terminal input", e);
+        }
+    }
+
+    @Override
+    public void sendToTerminal(int c) {
+        try {
+            out.write(c);
+        } catch (IOException e) {
+            // nowhere to say so
+        }
+    }
+
+    @Override
+    public void sendToTerminal(byte[] b, int offset, int length) {
+        try {
+            out.write(b, offset, length);
+        } catch (IOException e) {
+            // nowhere to say so
+        }
+    }
+
+}
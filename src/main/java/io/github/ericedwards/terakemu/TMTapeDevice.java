@@ -24,12 +24,19 @@
 //
 package io.github.ericedwards.terakemu;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class TMTapeDevice implements QbusDevice {
+public class TMTapeDevice implements QbusDevice, Flushable, DeviceStatistics {
 
     static Logger logger = LoggerFactory.getLogger(TMTapeDevice.class);
 
@@ -39,6 +46,13 @@ public class TMTapeDevice implements QbusDevice {
     private static final int TM_VECTOR = 0224;	// default interrupt vector
     private static final int TM_BRLEVEL = 5;	// default bus request level
     private static final int TM_DELAY = 100;	// in instructions
+    private static final int TM_WINDOW = 0400000;	// read-ahead, in bytes
+    private static final int TM_MAX_RECORD = 0200000;	// 64K bytes
+    private static final int TM_PREFETCH = 4;		// records read ahead
+
+    // Event data.
+    private static final int TM_EVENT_DONE = 0;	// command finished
+    private static final int TM_EVENT_READ = 1;	// read data has arrived
 
     // Control register definitions.
     private static final int TM_GO = 01;
@@ -85,7 +99,35 @@ public class TMTapeDevice implements QbusDevice {
 
     // Internal controller information
     private QbusDeviceInfo info;			// generic device information
-    private RandomAccessFile file;
+    private volatile MediaImage tape;		// plain or compressed image
+    private long position;			// where the tape is
+    private ByteBuffer window;			// read-ahead of the tape
+    private long windowStart;			// where the window starts
+    private ByteBuffer record;			// record being written
+    private String path;			// tape image path
+    private String workPath;			// plain copy of a compressed tape
+    private TapeIndex index;			// record offsets, null until needed
+
+    // Records read ahead of the tape position, in the background.  Slots
+    // go from free to ahead, in tape order, and back when used; all of
+    // this is guarded by ahead.
+    private ExecutorService prefetcher;		// null if not reading ahead
+    private final ArrayDeque<Prefetch> ahead = new ArrayDeque<>();
+    private final ArrayDeque<Prefetch> free = new ArrayDeque<>();
+    private long aheadNext;			// next record to read ahead
+    private boolean aheadEnd;			// stopped at a bad record
+    private boolean aheadRunning;
+    private int aheadGeneration;		// bumped when the tape moves
+    private long readPending;			// offset a read waits for, or -1
+    private boolean readWaiting;		// a read waits for TM_EVENT_READ
+    private volatile long prefetchHits;
+    private volatile long prefetchMisses;
+
+    private static class Prefetch {
+        long offset;				// where the record starts
+        int size;				// its length, -1 if unreadable
+        ByteBuffer data;			// length, data, length
+    }
     private Qbus unibus;
 
     public TMTapeDevice() {
@@ -96,38 +138,135 @@ public class TMTapeDevice implements QbusDevice {
         info = new QbusDeviceInfo(this, base, size, "TM11", false);
         tmcs = TM_CRDY;
         tmer = 0;
-        file = null;
+        tape = null;
+        window = ByteBuffer.allocateDirect(TM_WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+        window.limit(0);
+        record = ByteBuffer.allocateDirect(TM_MAX_RECORD + 8).order(ByteOrder.LITTLE_ENDIAN);
+        int slots = new DeviceOptions(options).getInt("prefetch", TM_PREFETCH);
+        for (int i = 0; i < slots; ++i) {
+            Prefetch p = new Prefetch();
+            p.data = ByteBuffer.allocateDirect(TM_MAX_RECORD + 8).order(ByteOrder.LITTLE_ENDIAN);
+            free.add(p);
+        }
+        if (slots > 0) {
+            prefetcher = Executors.newSingleThreadExecutor((r) -> {
+                Thread t = new Thread(r, "TM11 read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        readPending = -1;
         unibus = Qbus.instance();
         unibus.registerDevice(info);
     }
 
+    // assign() - Mount a tape image.  A compressed tape (see
+    // CompressedTape) carries its own record index and is read in place;
+    // the first write expands it into a plain work file beside it, which
+    // is compressed back when the tape is flushed or detached.  A path
+    // that doesn't exist yet is a blank tape, created empty.
     public void assign(String path) throws java.io.IOException {
         tmer &= ~(TM_TUR | TM_SELR);
-        if (file != null) {
-            file.close();
+        detach();
+        position = 0;
+        dropAhead();
+        window.limit(0);
+        if (new File(path).exists() && CompressedTape.isCompressedTape(path)) {
+            CompressedTape t = new CompressedTape(path);
+            tape = t;
+            index = t.getIndex();
+        } else {
+            tape = new FileImage(path, false);
+            index = TapeIndex.load(path + ".idx", new File(path));
         }
-        file = null;
-        file = new RandomAccessFile(path, "rw");
-        file.seek(0);
+        this.path = path;
         tmer = TM_TUR | TM_SELR | TM_BOT;
     }
 
-    private byte[] encodeRecordSize(int recordSize) {
-        byte[] encodedSize = new byte[4];
-        encodedSize[3] = (byte) ((recordSize >> 24) & 0xff);
-        encodedSize[2] = (byte) ((recordSize >> 16) & 0xff);
-        encodedSize[1] = (byte) ((recordSize >> 8) & 0xff);
-        encodedSize[0] = (byte) (recordSize & 0xff);
-        return encodedSize;
+    // detach() - Unmount the tape, compressing any writes back into a
+    // compressed tape first.
+    public synchronized void detach() throws IOException {
+        MediaImage t = tape;
+        if (t == null) {
+            return;
+        }
+        tape = null;
+        tmer &= ~(TM_TUR | TM_SELR);
+        dropAhead();
+        try {
+            if (workPath != null) {
+                CompressedTape.create(t, path);
+            }
+        } finally {
+            t.close();
+            if (workPath != null) {
+                new File(workPath).delete();
+                workPath = null;
+            }
+        }
     }
 
-    private int decodeRecordSize(byte[] encodedSize) {
-        int recordSize;
-        recordSize = (((int) encodedSize[3]) & 0xff) << 24;
-        recordSize += (((int) encodedSize[2]) & 0xff) << 16;
-        recordSize += (((int) encodedSize[1]) & 0xff) << 8;
-        recordSize += ((int) encodedSize[0]) & 0xff;
-        return recordSize;
+    // flush() - Push writes out to the tape image.
+    public synchronized void flush() throws IOException {
+        if (tape != null) {
+            tape.flush();
+            if (workPath != null) {
+                CompressedTape.create(tape, path);
+            }
+        }
+    }
+
+    // tapeIndex() - The record index, built from the tape and saved beside
+    // it if there isn't a good one already.  Work files don't keep one.
+    private TapeIndex tapeIndex() throws IOException {
+        if (index == null) {
+            index = TapeIndex.build(tape);
+            if (workPath == null) {
+                try {
+                    index.save(path + ".idx", new File(path));
+                } catch (IOException e) {
+                    logger.warn("can't save tape index {}.idx", path);
+                }
+            }
+        }
+        return index;
+    }
+
+    // invalidateIndex() - The tape has been written, the index is no good.
+    private void invalidateIndex() {
+        if (path != null) {
+            index = null;
+            if (workPath == null) {
+                new File(path + ".idx").delete();
+            }
+        }
+    }
+
+    // fill() - Make sure length bytes of tape from offset are in the
+    // window, reading ahead as far as the window goes.  Returns a view
+    // of them.  Throws EOFException if the tape ends first.
+    private ByteBuffer fill(long offset, int length) throws IOException {
+        if ((offset < windowStart)
+                || ((offset + length) > (windowStart + window.limit()))) {
+            if (length > window.capacity()) {
+                throw new EOFException();		// no record is that big
+            }
+            window.clear();
+            windowStart = offset;
+            long left = tape.length() - offset;
+            if (left < window.capacity()) {
+                window.limit((int) Math.max(left, 0));
+            }
+            tape.read(offset, window);
+            window.flip();
+            if (window.limit() < length) {
+                throw new EOFException();
+            }
+        }
+        ByteBuffer b = window.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        b.position((int) (offset - windowStart));
+        b.limit(b.position() + length);
+        return b;
     }
 
     // read() - Handle the reading of an TM11 register.
@@ -205,6 +344,14 @@ public class TMTapeDevice implements QbusDevice {
     // reset()
     public void reset() {
         // Unibus reset, later handle this properly.
+        dropAhead();
+    }
+
+    public String getStatistics() {
+        long hits = prefetchHits;
+        long total = hits + prefetchMisses;
+        return "prefetch hits " + hits + " misses " + prefetchMisses
+                + ((total == 0) ? "" : (" (" + ((hits * 100) / total) + "%)"));
     }
 
     // exec() - parse the command and call the proper handler.
@@ -218,7 +365,13 @@ public class TMTapeDevice implements QbusDevice {
                 doRewind();
                 break;
             case TM_RCOM:							// read command
-                doRead();
+                if (prefetcher == null) {
+                    doRead();
+                } else if (startRead()) {
+                    return;						// TM_EVENT_READ finishes it
+                } else {
+                    delay = 0;						// the data was here
+                }
                 break;
             case TM_SFORW:							// space forward
                 doSpaceForward();
@@ -240,13 +393,23 @@ public class TMTapeDevice implements QbusDevice {
                 delay = 0;
                 break;
         }
-        unibus.scheduleEvent(this, delay, 0);
+        if ((tmcs & 016) != TM_RCOM) {
+            dropAhead();					// the tape moved
+        }
+        unibus.scheduleEvent(this, delay, TM_EVENT_DONE);
     }
 
     // eventService() - Finish the current command.  Set the error bits and
     // mark the controller ready.
     public void eventService(int data) {
         logger.debug("eventService({})", data);
+        if (data == TM_EVENT_READ) {
+            if (!readWaiting) {
+                return;					// the read was dropped
+            }
+            readWaiting = false;
+            finishRead();
+        }
         if ((tmer & TM_ANYERR) != 0) {
             tmcs |= TM_CE;
         }
@@ -262,49 +425,26 @@ public class TMTapeDevice implements QbusDevice {
     }
 
     private void doRewind() {
-        if (file != null) {
-            try {
-                file.seek(0);
-                tmer |= TM_BOT;
-            } catch (IOException e) {
-                tmer |= TM_ILC;
-            }
+        if (tape != null) {
+            position = 0;
+            tmer |= TM_BOT;
         } else {
             tmer |= TM_ILC;
         }
     }
 
+    // doRead() - Read the next record straight into memory.
     private void doRead() {
-        if (file != null) {
+        if (tape != null) {
             try {
-                byte[] recInfo = new byte[4];
-                int i;
-                int temp;
-                int addr = tmba + ((tmcs & 060) << 12);
-                int count = (0177777 - tmbc) + 1;
-                file.readFully(recInfo);
-                byte[] buffer = new byte[decodeRecordSize(recInfo)];
-                file.readFully(buffer);
-                file.readFully(recInfo);
-                if (decodeRecordSize(recInfo) == 0) {
-                    tmer |= TM_EOF;
-                    return;
-                }
-                logger.debug("doRead() {} {}", addr, count);
-                for (i = 0; (i < buffer.length) && (count > 0); count -= 2) {
-                    temp = ((int) buffer[i + 1]) << 8;
-                    temp += ((int) buffer[i]) & 0xff;
-                    unibus.write(addr, (short) temp);
-                    addr += 2;
-                    i += 2;
+                int size = fill(position, 4).getInt();
+                if ((size < 0) || (size > (window.capacity() - 8))) {
+                    position = tape.length();
+                    throw new EOFException();
                 }
-                tmbc = ((0177777 - count) + 1) & 0177777;
-                if ((count != 0) || (i != buffer.length)) {
-                    tmer |= TM_RLE;
-                }
-            } catch (Trap e) {
-                tmer |= TM_NXM;
-                return;
+                ByteBuffer data = fill(position, size + 8);
+                position += size + 8;
+                readRecord(data, size);
             } catch (IOException e) {
                 tmer |= TM_CRC;
                 return;
@@ -314,29 +454,196 @@ public class TMTapeDevice implements QbusDevice {
         }
     }
 
+    // readRecord() - Move a record, given with its length words, into
+    // memory.  Lengths are in bytes; an odd length record is padded out
+    // to a whole word.
+    private void readRecord(ByteBuffer data, int size) {
+        try {
+            int addr = tmba + ((tmcs & 060) << 12);
+            int count = (0177777 - tmbc) + 1;
+            if (data.getInt(data.position() + 4 + size) == 0) {
+                tmer |= TM_EOF;
+                return;
+            }
+            logger.debug("doRead() {} {}", addr, count);
+            data.position(data.position() + 4);
+            int moved = Math.min(count, size);
+            int words = moved / 2;
+            unibus.dmaWrite(addr, data, words);
+            if ((moved & 1) != 0) {
+                unibus.write(addr + (words * 2), (short) (data.get() & 0xff));
+            }
+            count -= moved;
+            tmbc = ((0177777 - count) + 1) & 0177777;
+            if ((count != 0) || (moved != size)) {
+                tmer |= TM_RLE;
+            }
+        } catch (Trap e) {
+            tmer |= TM_NXM;
+        }
+    }
+
+    // startRead() - Read from the read-ahead.  Returns true if the record
+    // isn't there yet; the read finishes when the prefetcher brings it.
+    private boolean startRead() {
+        if (tape == null) {
+            tmer |= TM_ILC;
+            return false;
+        }
+        synchronized (ahead) {
+            if (!ahead.isEmpty() && (ahead.peek().offset != position)) {
+                dropAhead();
+            }
+            if (ahead.isEmpty()) {
+                ++prefetchMisses;
+                if (aheadEnd) {
+                    dropAhead();
+                }
+                readPending = position;
+                readWaiting = true;
+                startPrefetch();
+                return true;
+            }
+            ++prefetchHits;
+        }
+        finishRead();
+        return false;
+    }
+
+    // finishRead() - Use the record at the head of the read-ahead.  One
+    // that couldn't be read is read again the slow way for its error.
+    private void finishRead() {
+        Prefetch p;
+        synchronized (ahead) {
+            p = ahead.poll();
+        }
+        if ((p == null) || (p.offset != position)) {
+            doRead();					// lost it to a reset
+        } else if (p.size < 0) {
+            doRead();
+        } else {
+            position = p.offset + p.size + 8;
+            ByteBuffer data = p.data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            data.position(0).limit(p.size + 8);
+            readRecord(data, p.size);
+        }
+        synchronized (ahead) {
+            if (p != null) {
+                free.add(p);
+            }
+            startPrefetch();
+        }
+    }
+
+    // dropAhead() - Throw away the read-ahead, the tape has moved.
+    private void dropAhead() {
+        synchronized (ahead) {
+            ++aheadGeneration;
+            free.addAll(ahead);
+            ahead.clear();
+            aheadNext = position;
+            aheadEnd = false;
+            aheadRunning = false;
+            readPending = -1;
+            readWaiting = false;
+        }
+    }
+
+    // startPrefetch() - Get the prefetcher going if there is room.  Call
+    // holding ahead.
+    private void startPrefetch() {
+        if ((prefetcher != null) && !aheadRunning && !aheadEnd
+                && !free.isEmpty() && (tape != null)) {
+            aheadRunning = true;
+            final int generation = aheadGeneration;
+            prefetcher.execute(() -> prefetch(generation));
+        }
+    }
+
+    // prefetch() - On the prefetcher, read records until the slots run
+    // out.  A read waiting for one of them is told when it arrives.
+    private void prefetch(int generation) {
+        while (true) {
+            Prefetch p;
+            boolean wake = false;
+            synchronized (ahead) {
+                if (generation != aheadGeneration) {
+                    return;
+                }
+                if (free.isEmpty() || aheadEnd) {
+                    aheadRunning = false;
+                    return;
+                }
+                p = free.poll();
+                p.offset = aheadNext;
+            }
+            readAhead(p);
+            synchronized (ahead) {
+                if (generation != aheadGeneration) {
+                    free.add(p);
+                    return;
+                }
+                ahead.add(p);
+                if (p.size < 0) {
+                    aheadEnd = true;
+                } else {
+                    aheadNext = p.offset + p.size + 8;
+                }
+                if (readPending == p.offset) {
+                    readPending = -1;
+                    wake = true;
+                }
+            }
+            if (wake) {
+                // not holding ahead, eventService() takes it under the
+                // event queue's lock
+                unibus.scheduleEvent(this, 0, TM_EVENT_READ);
+            }
+        }
+    }
+
+    // readAhead() - Read the record at p.offset into p, or mark it bad.
+    private void readAhead(Prefetch p) {
+        try {
+            p.data.clear().limit(4);
+            readFully(p.data, p.offset);
+            int size = p.data.getInt(0);
+            if ((size < 0) || (size > TM_MAX_RECORD)) {
+                p.size = -1;
+                return;
+            }
+            p.data.limit(size + 8);
+            readFully(p.data, p.offset);
+            p.size = size;
+        } catch (IOException e) {
+            p.size = -1;
+        }
+    }
+
+    // readFully() - Fill b from the tape, its position counting from offset.
+    private void readFully(ByteBuffer b, long offset) throws IOException {
+        MediaImage t = tape;
+        if (t == null) {
+            throw new EOFException();
+        }
+        t.read(offset + b.position(), b);
+    }
+
+    // doWrite() - Write a record straight from memory.
     private void doWrite() {
-        if (file != null) {
+        if (tape != null) {
             try {
-                int i;
-                int temp;
                 int addr = tmba + ((tmcs & 060) << 12);
                 int count = (0177777 - tmbc) + 1;
-                byte[] recInfo = encodeRecordSize(count);
-                byte[] buffer = new byte[count];
-                for (i = 0; (i < buffer.length) && (count > 0); count -= 2) {
-                    temp = ((int) unibus.read(addr)) & 0177777;
-                    buffer[i] = (byte) (temp & 0xff);
-                    buffer[i + 1] = (byte) ((temp >> 8) & 0xff);
-                    addr += 2;
-                    i += 2;
-                }
-                file.write(recInfo);
-                file.write(buffer);
-                file.write(recInfo);
-                tmbc = ((0177777 - count) + 1) & 0177777;
-                if ((count != 0) || (i != buffer.length)) {
-                    tmer |= TM_RLE;
-                }
+                record.clear();
+                record.putInt(count);
+                unibus.dmaRead(addr, record, (count + 1) / 2);
+                record.position(4 + count);		// drop an odd pad byte
+                record.putInt(count);
+                record.flip();
+                invalidateIndex();
+                writeTape(record);
+                tmbc = 0;
             } catch (Trap e) {
                 tmer |= TM_NXM;
                 return;
@@ -350,11 +657,14 @@ public class TMTapeDevice implements QbusDevice {
     }
 
     private void doWriteEof() {
-        if (file != null) {
+        if (tape != null) {
             try {
-                byte[] recInfo = encodeRecordSize(0);
-                file.write(recInfo);
-                file.write(recInfo);
+                record.clear();
+                record.putInt(0);
+                record.putInt(0);
+                record.flip();
+                invalidateIndex();
+                writeTape(record);
             } catch (IOException e) {
                 tmer |= TM_CRC;
                 return;
@@ -364,21 +674,47 @@ public class TMTapeDevice implements QbusDevice {
         }
     }
 
+    // writeTape() - Write at the tape's position, dropping the read-ahead.
+    // A compressed tape is expanded into its work file first.
+    private synchronized void writeTape(ByteBuffer b) throws IOException {
+        window.limit(0);
+        if (tape instanceof CompressedTape) {
+            dropAhead();
+            String work = path + ".work";
+            ((CompressedTape) tape).expand(work);
+            MediaImage old = tape;
+            tape = new FileImage(work, false);
+            workPath = work;
+            old.close();
+        }
+        int count = b.remaining();
+        tape.write(position, b);
+        position += count;
+    }
+
+    // doSpaceForward() - Skip records, stopping after a tape mark.
     private void doSpaceForward() {
-        if (file != null) {
+        if (tape != null) {
             try {
-                byte[] recInfo = new byte[4];
+                TapeIndex t = tapeIndex();
                 int count = (0177777 - tmbc) + 1;
-                while (count > 0) {
-                    file.readFully(recInfo);
-                    byte[] buffer = new byte[decodeRecordSize(recInfo)];
-                    file.readFully(buffer);
-                    file.readFully(recInfo);
-                    if (decodeRecordSize(recInfo) == 0) {
-                        tmer |= TM_EOF;
-                        break;
-                    }
-                    count--;
+                int i = t.find(position);
+                if (i < 0) {
+                    tmer |= TM_CRC;				// lost between records
+                    return;
+                }
+                int mark = t.nextMark(i);
+                if ((mark < t.size()) && ((mark - i) < count)) {
+                    count -= mark - i;
+                    position = t.offset(mark + 1);
+                    tmer |= TM_EOF;
+                } else if ((i + count) > t.size()) {
+                    position = t.offset(t.size());		// ran off the end
+                    tmer |= TM_CRC;
+                    return;
+                } else {
+                    position = t.offset(i + count);
+                    count = 0;
                 }
                 tmbc = (0177777 - count) + 1;
             } catch (IOException e) {
@@ -390,25 +726,24 @@ public class TMTapeDevice implements QbusDevice {
         }
     }
 
+    // doSpaceReverse() - Back up over records, tape marks included,
+    // stopping at the beginning of the tape.
     private void doSpaceReverse() {
-        if (file != null) {
+        if (tape != null) {
             try {
-                long temp1;
-                int temp2;
-                byte[] recInfo = new byte[4];
+                TapeIndex t = tapeIndex();
                 int count = (0177777 - tmbc) + 1;
                 tmbc = (0177777 - count) + 1;
-                while (count > 0) {
-                    temp1 = file.getFilePointer();
-                    if (temp1 == 0) {
-                        tmer |= TM_BOT;
-                        break;
-                    }
-                    file.seek(temp1 - 4);
-                    file.readFully(recInfo);
-                    temp2 = decodeRecordSize(recInfo);
-                    file.seek(temp1 - (8 + temp2));
-                    count--;
+                int i = t.find(position);
+                if (i < 0) {
+                    tmer |= TM_CRC;				// lost between records
+                    return;
+                }
+                if (count > i) {
+                    position = 0;
+                    tmer |= TM_BOT;
+                } else {
+                    position = t.offset(i - count);
                 }
             } catch (IOException e) {
                 tmer |= TM_CRC;
@@ -1,5 +1,3 @@
-package io.github.ericedwards.terakemu;
-
 //
 // Copyright (c) 2001 Eric A. Edwards
 //
@@ -11,7 +9,6 @@ package io.github.ericedwards.terakemu;
 // to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
 // copies of the Software, and to permit persons to whom the Software is
 // furnished to do so, subject to the following conditions:
-
 // The above copyright notice and this permission notice shall be included in all
 // copies or substantial portions of the Software.
 //
@@ -23,67 +20,305 @@ package io.github.ericedwards.terakemu;
 // OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 // SOFTWARE.
 //
-// TapeConvert.java - Convert tapes to internal format.
+// TapeConvert.java - Build a tape image from a manifest of files.
 //
+// Each line of the manifest names a file and the record size to cut it
+// into, relative paths being taken from the manifest's directory:
+//
+//     # 2.9 BSD distribution
+//     file1     512
+//     file2     1024
+//     usr.tar   10240
+//
+// Every file becomes its records, the last one short if need be, then
+// a tape mark.  The files are cut into chunks of records that are read
+// and formatted in parallel, each in one large read, and written to the
+// tape in order.  A CRC32 is kept of every chunk so that -v can read the
+// finished tape back and check it.  The record index the TM11 uses for
+// spacing is saved beside the tape, as TMTapeDevice would have made it.
+//
+package io.github.ericedwards.terakemu;
 
-// package PDPCafe;
-
-import java.io.*;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 public class TapeConvert {
 
-  private FileOutputStream outputFile;
-
-  private byte[] encodeRecordSize(int recordSize) {
-    byte[] encodedSize = new byte[4];
-    encodedSize[3] = (byte) ((recordSize >> 24) & 0xff);
-    encodedSize[2] = (byte) ((recordSize >> 16) & 0xff);
-    encodedSize[1] = (byte) ((recordSize >> 8) & 0xff);
-    encodedSize[0] = (byte) (recordSize & 0xff);
-    return encodedSize;
-  }
-
-  public TapeConvert(String outputPath) throws IOException {
-    outputFile = new FileOutputStream(outputPath);
-  }
-
-  public void addImage(String inputPath, int recordSize) throws IOException {
-    int bytesRead = 0, lastBytesRead = 0, records = 0;
-    byte[] buffer = new byte[recordSize];
-    FileInputStream inputFile = new FileInputStream(inputPath);
-    while ((bytesRead = inputFile.read(buffer)) > 0) {
-      ++records;
-      outputFile.write(encodeRecordSize(bytesRead));
-      outputFile.write(buffer, 0, bytesRead);
-      outputFile.write(encodeRecordSize(bytesRead));
-      lastBytesRead = bytesRead;
+    private static final int CHUNK = 04000000;		// input bytes per chunk, about
+    private static final int MAX_RECORD = 0200000;	// as the TM11 will read
+
+    // A file to put on the tape.
+    private static class Input {
+        String path;
+        int recordSize;
+        long length;
+        int records;				// not counting the tape mark
+        FileChannel channel;
+    }
+
+    // A run of records from one file, and where it goes on the tape.
+    private static class Chunk {
+        Input input;
+        long inputOffset;
+        int records;
+        boolean mark;				// ends with the file's tape mark
+        long offset;				// on the tape
+        int size;				// on the tape
+        long crc;
+    }
+
+    private final List<Input> inputs = new ArrayList<>();
+    private final int threads;
+
+    public TapeConvert() {
+        threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    // add() - Put a file on the tape, after those already added.
+    public void add(String path, int recordSize) throws IOException {
+        if ((recordSize <= 0) || (recordSize > MAX_RECORD)) {
+            throw new IOException("bad record size " + recordSize + " for " + path);
+        }
+        File f = new File(path);
+        if (!f.isFile()) {
+            throw new IOException("can't find " + path);
+        }
+        Input in = new Input();
+        in.path = path;
+        in.recordSize = recordSize;
+        in.length = f.length();
+        in.records = (int) ((in.length + recordSize - 1) / recordSize);
+        inputs.add(in);
+    }
+
+    // readManifest() - Add the files listed in a manifest.
+    public void readManifest(String path) throws IOException {
+        File dir = new File(path).getAbsoluteFile().getParentFile();
+        try (BufferedReader r = new BufferedReader(new FileReader(path))) {
+            String line;
+            int n = 0;
+            while ((line = r.readLine()) != null) {
+                ++n;
+                int hash = line.indexOf('#');
+                if (hash >= 0) {
+                    line = line.substring(0, hash);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new IOException(path + ":" + n + ": expected <file> <record size>");
+                }
+                int size;
+                try {
+                    size = Integer.decode(fields[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + n + ": bad record size " + fields[1]);
+                }
+                File f = new File(fields[0]);
+                if (!f.isAbsolute()) {
+                    f = new File(dir, fields[0]);
+                }
+                add(f.getPath(), size);
+            }
+        }
     }
-    outputFile.write(encodeRecordSize(0));
-    outputFile.write(encodeRecordSize(0));
-    inputFile.close();
-    System.out.println("Added: " + inputPath + " " + records +
-      " record(s) of " + recordSize + " bytes, last record was " +
-      lastBytesRead);
-  }
-
-  public void close() throws IOException {
-    outputFile.close();
-  }
-
-  public static void main(String args[]) {
-    try {
-      TapeConvert r = new TapeConvert("C:/Sandbox/PDP11BSD/29bsd.tape");
-      r.addImage("C:/Sandbox/PDP11BSD/file1", 512);
-      r.addImage("C:/Sandbox/PDP11BSD/file2", 1024);
-      r.addImage("C:/Sandbox/PDP11BSD/file3", 1024);
-      r.addImage("C:/Sandbox/PDP11BSD/file4", 1024);
-      r.addImage("C:/Sandbox/PDP11BSD/file5", 1024);
-      r.addImage("C:/Sandbox/PDP11BSD/file6", 1024);
-      r.addImage("C:/Sandbox/PDP11BSD/file7", 10240);
-      r.addImage("C:/Sandbox/PDP11BSD/usr.tar", 10240);
-      r.close();
-    } catch(IOException e) {
-      System.out.println("Error Occurred");
+
+    // layout() - Cut the files into chunks and place them on the tape.
+    private List<Chunk> layout() {
+        List<Chunk> chunks = new ArrayList<>();
+        long offset = 0;
+        for (Input in : inputs) {
+            int perChunk = Math.max(1, CHUNK / in.recordSize);
+            int first = 0;
+            do {
+                Chunk c = new Chunk();
+                c.input = in;
+                c.inputOffset = (long) first * in.recordSize;
+                c.records = Math.min(perChunk, in.records - first);
+                first += c.records;
+                c.mark = (first == in.records);
+                long bytes = Math.min(in.length - c.inputOffset,
+                        (long) c.records * in.recordSize);
+                c.size = (int) bytes + (8 * c.records) + (c.mark ? 8 : 0);
+                c.offset = offset;
+                offset += c.size;
+                chunks.add(c);
+            } while (first < in.records);
+        }
+        return chunks;
     }
-  }
+
+    // format() - Read a chunk's records in one go and frame them.
+    private static ByteBuffer format(Chunk c) throws IOException {
+        Input in = c.input;
+        int bytes = c.size - (8 * c.records) - (c.mark ? 8 : 0);
+        ByteBuffer data = ByteBuffer.allocate(bytes);
+        while (data.hasRemaining()) {
+            if (in.channel.read(data, c.inputOffset + data.position()) < 0) {
+                throw new EOFException(in.path + " got shorter");
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(c.size).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < c.records; ++i) {
+            int size = Math.min(in.recordSize, bytes - (i * in.recordSize));
+            data.limit((i * in.recordSize) + size);
+            data.position(i * in.recordSize);
+            out.putInt(size);
+            out.put(data);
+            out.putInt(size);
+        }
+        if (c.mark) {
+            out.putInt(0);
+            out.putInt(0);
+        }
+        out.flip();
+        c.crc = crc(out);
+        return out;
+    }
+
+    private static long crc(ByteBuffer b) {
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        return crc.getValue();
+    }
+
+    // build() - Write the tape and its index.  Chunks are formatted on a
+    // pool, a few ahead of the one being written.
+    public void build(String path, boolean verify) throws IOException {
+        List<Chunk> chunks = layout();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Input in : inputs) {
+                in.channel = new RandomAccessFile(in.path, "r").getChannel();
+            }
+            try (RandomAccessFile f = new RandomAccessFile(path, "rw")) {
+                f.setLength(0);
+                FileChannel out = f.getChannel();
+                ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+                int next = 0;
+                while ((next < chunks.size()) || !pending.isEmpty()) {
+                    while ((next < chunks.size()) && (pending.size() < (2 * threads))) {
+                        final Chunk c = chunks.get(next++);
+                        pending.add(pool.submit(() -> format(c)));
+                    }
+                    ByteBuffer b = get(pending.poll());
+                    while (b.hasRemaining()) {
+                        out.write(b);
+                    }
+                }
+                out.force(false);
+            } finally {
+                for (Input in : inputs) {
+                    if (in.channel != null) {
+                        in.channel.close();
+                        in.channel = null;
+                    }
+                }
+            }
+            if (verify) {
+                verify(path, chunks, pool);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        index().save(path + ".idx", new File(path));
+        for (Input in : inputs) {
+            long last = in.length - ((long) Math.max(in.records - 1, 0) * in.recordSize);
+            System.out.println("Added: " + in.path + " " + in.records
+                    + " record(s) of " + in.recordSize + " bytes, last record was " + last);
+        }
+    }
+
+    // verify() - Read the tape back and check every chunk's CRC.
+    private void verify(String path, List<Chunk> chunks, ExecutorService pool)
+            throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(path, "r")) {
+            FileChannel tape = f.getChannel();
+            List<Future<ByteBuffer>> checks = new ArrayList<>();
+            for (final Chunk c : chunks) {
+                checks.add(pool.submit(() -> {
+                    ByteBuffer b = ByteBuffer.allocate(c.size);
+                    while (b.hasRemaining()) {
+                        if (tape.read(b, c.offset + b.position()) < 0) {
+                            throw new EOFException("tape is short");
+                        }
+                    }
+                    b.flip();
+                    if (crc(b) != c.crc) {
+                        throw new IOException("tape differs at offset " + c.offset);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<ByteBuffer> check : checks) {
+                get(check);
+            }
+        }
+    }
+
+    private static ByteBuffer get(Future<ByteBuffer> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // index() - The tape's record index, straight from the layout.
+    private TapeIndex index() {
+        int count = 0;
+        for (Input in : inputs) {
+            count += in.records + 1;
+        }
+        int[] lengths = new int[count];
+        int i = 0;
+        for (Input in : inputs) {
+            for (int r = 0; r < in.records; ++r) {
+                lengths[i++] = (int) Math.min(in.recordSize,
+                        in.length - ((long) r * in.recordSize));
+            }
+            lengths[i++] = 0;
+        }
+        return TapeIndex.of(lengths, count);
+    }
+
+    public static void main(String args[]) {
+        boolean verify = (args.length == 3) && args[0].equals("-v");
+        if (args.length != (verify ? 3 : 2)) {
+            System.out.println("usage: TapeConvert [-v] <manifest> <tape>");
+            System.exit(1);
+        }
+        try {
+            TapeConvert t = new TapeConvert();
+            t.readManifest(args[args.length - 2]);
+            t.build(args[args.length - 1], verify);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * TapeIndex.java - Where the records and tape marks are on a tape image.
+ *
+ * A tape image is a run of records, each a 4 byte little-endian length,
+ * the data and the length again; a tape mark is a record of length 0.
+ * The index holds the offset and length of every record, plus for each
+ * record the next tape mark at or after it, so spacing over records or
+ * to the next file is a lookup instead of a walk down the tape.  It is
+ * built by reading the headers only, and can be saved beside the tape
+ * in a .idx file that is only trusted while the tape's length and
+ * modification time still match.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public class TapeIndex {
+
+    private static final int MAGIC = 0x544b5449;        // "TKTI"
+    private static final int VERSION = 1;
+
+    private final long[] offsets;       // record starts, then end of tape
+    private final int[] lengths;
+    private final int[] nextMark;       // per record, and one past the end
+
+    private TapeIndex(long[] offsets, int[] lengths, int count) {
+        this.offsets = Arrays.copyOf(offsets, count + 1);
+        this.lengths = Arrays.copyOf(lengths, count);
+        nextMark = new int[count + 1];
+        nextMark[count] = count;
+        for (int i = count - 1; i >= 0; --i) {
+            nextMark[i] = (lengths[i] == 0) ? i : nextMark[i + 1];
+        }
+    }
+
+    // build() - Walk the headers of a tape image.  The walk stops at a
+    // record that runs off the end of the file.
+    public static TapeIndex build(MediaImage tape) throws IOException {
+        long length = tape.length();
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int count = 0;
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while ((position + 4) <= length) {
+            header.clear();
+            tape.read(position, header);
+            int size = header.getInt(0);
+            if ((size < 0) || ((position + 8 + size) > length)) {
+                break;
+            }
+            if (count == lengths.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = position;
+            lengths[count] = size;
+            ++count;
+            position += 8 + size;
+        }
+        offsets = Arrays.copyOf(offsets, Math.max(offsets.length, count + 1));
+        offsets[count] = position;
+        return new TapeIndex(offsets, lengths, count);
+    }
+
+    // of() - The index of a tape laid out from the given record lengths,
+    // for tools that know the layout before the tape is written.
+    public static TapeIndex of(int[] lengths, int count) {
+        long[] offsets = new long[count + 1];
+        for (int i = 0; i < count; ++i) {
+            offsets[i + 1] = offsets[i] + 8 + lengths[i];
+        }
+        return new TapeIndex(offsets, lengths, count);
+    }
+
+    // load() - Read a saved index, or null if there is none or the tape
+    // has changed since it was saved.
+    public static TapeIndex load(String path, File tape) {
+        File f = new File(path);
+        if (!f.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)))) {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)
+                    || (in.readLong() != tape.length())
+                    || (in.readLong() != tape.lastModified())) {
+                return null;
+            }
+            return read(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void save(String path, File tape) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(tape.length());
+            out.writeLong(tape.lastModified());
+            write(out);
+        }
+    }
+
+    // read() - The records part of a saved index, also used inside
+    // compressed tapes.
+    public static TapeIndex read(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("bad tape index");
+        }
+        long[] offsets = new long[count + 1];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; ++i) {
+            offsets[i] = in.readLong();
+            lengths[i] = in.readInt();
+        }
+        offsets[count] = in.readLong();
+        return new TapeIndex(offsets, lengths, count);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(lengths.length);
+        for (int i = 0; i < lengths.length; ++i) {
+            out.writeLong(offsets[i]);
+            out.writeInt(lengths[i]);
+        }
+        out.writeLong(offsets[lengths.length]);
+    }
+
+    // size() - The number of records, tape marks included.
+    public int size() {
+        return lengths.length;
+    }
+
+    // find() - The record that starts at position, size() at the end of
+    // the tape, or -1 if position isn't the start of a record.
+    public int find(long position) {
+        int i = Arrays.binarySearch(offsets, position);
+        return (i < 0) ? -1 : i;
+    }
+
+    // offset() - Where record i starts, or for size() the end of tape.
+    public long offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    public boolean isMark(int i) {
+        return lengths[i] == 0;
+    }
+
+    // nextMark() - The first tape mark at or after record i, or size().
+    public int nextMark(int i) {
+        return nextMark[i];
+    }
+
+}
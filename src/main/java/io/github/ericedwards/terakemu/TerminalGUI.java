@@ -1,67 +1,60 @@
 package io.github.ericedwards.terakemu;
 
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.awt.Font;
-import java.awt.Toolkit;
-import java.awt.event.FocusEvent;
-import java.awt.event.FocusListener;
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
-import javax.swing.JTextArea;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import javax.swing.Timer;
 
-public class TerminalGUI implements SerialTerminal {
+// TerminalGUI - The console terminal in a window.  The screen is drawn
+// straight from the TerminalScreen grid.  Rows that change are marked,
+// and at most REFRESH_HZ times a second the marked rows are repainted,
+// so fast output costs no more to display than slow.
+public class TerminalGUI extends TerminalScreen {
 
-    private static Logger logger = LoggerFactory.getLogger(TerminalGUI.class);
-    private static final int TERMINAL_COLUMNS = 80;
-    private static final int TERMINAL_ROWS = 24;
     private static final int TERMINAL_FONT_SIZE = 12;
-    private JFrame mainFrame;
-    private JTextArea textArea;
-    private Font font;
-    private SerialHost host;
-    private int currentRow;
-    private int currentColumn;
-    private StringBuffer currentText;
-    private int escapeSequence;
-    private int cursorSaved;
+    private static final int REFRESH_HZ = 60;
+    private static final int MARGIN = 4;
+
+    private final SerialHost host;
+    private final JFrame mainFrame;
+    private final ScreenPanel panel;
+    private final Font font;
+    private final int charWidth;
+    private final int lineHeight;
+    private final int ascent;
+    private final boolean[] dirty = new boolean[ROWS];
+    private boolean anyDirty;
+    private boolean cursorMoved;
+    private int cursorRow;			// where the cursor is drawn
+    private int cursorColumn;
 
     public TerminalGUI(SerialHost host) {
         this.host = host;
         mainFrame = new JFrame("Console Terminal");
         mainFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        textArea = new JTextArea(TERMINAL_ROWS, TERMINAL_COLUMNS + 1);
         font = new Font(Font.MONOSPACED, Font.BOLD, TERMINAL_FONT_SIZE);
-        textArea.addKeyListener(new KeyListener());
-        textArea.setFont(font);
-        textArea.setEditable(false);
-        textArea.getCaret().setVisible(true);
-        textArea.getCaret().setSelectionVisible(true);
-        textArea.setLineWrap(false);
-
-        clearScreen();
-        home();
-        updateText();
-        positionCaret();
-
-        textArea.addFocusListener(new FocusListener() {
-            @Override
-            public void focusGained(FocusEvent e) {
-                textArea.getCaret().setVisible(true);
-                textArea.getCaret().setSelectionVisible(true);
-            }
-
-            @Override
-            public void focusLost(FocusEvent e) {
-                textArea.getCaret().setSelectionVisible(true);
-            }
-        });
+        panel = new ScreenPanel();
+        FontMetrics metrics = panel.getFontMetrics(font);
+        charWidth = metrics.charWidth('M');
+        lineHeight = metrics.getHeight();
+        ascent = metrics.getAscent();
+        panel.setPreferredSize(new Dimension((COLUMNS * charWidth) + (2 * MARGIN),
+                (ROWS * lineHeight) + (2 * MARGIN)));
+        panel.setFocusable(true);
+        panel.addKeyListener(new KeyListener());
 
         JMenuBar mb = new JMenuBar();
         JMenu menu = new JMenu("File");
@@ -71,145 +64,97 @@ public class TerminalGUI implements SerialTerminal {
         mb.add(menu);
 
         mainFrame.setJMenuBar(mb);
-        mainFrame.setSize(1000, 800);       // FIXME - how to auto size?
-        mainFrame.add(textArea);
+        mainFrame.add(panel);
+        mainFrame.pack();
         mainFrame.setVisible(true);
-        
-        escapeSequence = 0;
+        panel.requestFocusInWindow();
 
+        new Timer(1000 / REFRESH_HZ, (e) -> refresh()).start();
     }
 
-    private void clearScreen() {
-        currentText = new StringBuffer();
-        for (int i = 0; i < TERMINAL_ROWS; ++i) {
-            for (int j = 0; j < TERMINAL_COLUMNS; ++j) {
-                currentText.append(" ");
-            }
-            currentText.append("\n");
-        }
+    // The TerminalScreen hooks, called with the screen locked.
+    @Override
+    protected void changed(int row) {
+        dirty[row] = true;
+        anyDirty = true;
     }
 
-    private void home() {
-        currentRow = 0;
-        currentColumn = 0;
+    @Override
+    protected void scrolled() {
+        for (int i = 0; i < ROWS; ++i) {
+            dirty[i] = true;
+        }
+        anyDirty = true;
     }
 
-    private void positionCaret() {
-        int position = (currentRow * (TERMINAL_COLUMNS + 1)) + currentColumn;
-        textArea.setCaretPosition(position);
+    @Override
+    protected void moved() {
+        cursorMoved = true;
     }
 
-    private void updateText() {
-        textArea.setText(currentText.toString());
+    @Override
+    protected void bell() {
+        Toolkit.getDefaultToolkit().beep();
     }
 
-    @Override
-    public void sendToTerminal(int s) {
-        int position = (currentRow * (TERMINAL_COLUMNS + 1)) + currentColumn;
-        if (escapeSequence > 0) {
-            switch(escapeSequence) {
-                case 1:
-                    if (s == 61) {                   // cursor positioning             
-                        escapeSequence = 2;
-                    } else {
-                        logger.debug("unknown escape sequence: " + s);
-                        escapeSequence = 0;                   
-                    }
-                    break;
-                case 2:
-                    cursorSaved = s;
-                    escapeSequence = 3;
-                    break;
-                case 3:
-                    logger.debug("will cursor position: " + cursorSaved + " " + s);
-                    currentRow = cursorSaved - 32;
-                    currentColumn = s - 32;
-                    escapeSequence = 0;
-                    break;
-                default:
-                    logger.debug("unknown escape sequence state: " + escapeSequence);
-                    break;
+    // refresh() - On the timer, repaint the rows that changed.
+    private void refresh() {
+        int first = ROWS;
+        int last = -1;
+        synchronized (this) {
+            if (cursorMoved) {
+                cursorMoved = false;
+                dirty[cursorRow] = true;
+                cursorRow = getRow();
+                cursorColumn = getColumn();
+                dirty[cursorRow] = true;
+                anyDirty = true;
+            }
+            if (!anyDirty) {
+                return;
             }
-        } else if ((s >= 32) && (s < 127)) {
-            String charString = Character.toString((char) s);
-            currentText = currentText.replace(position, position + 1, charString);
-            textArea.setText(currentText.toString());
-            ++currentColumn;
-            if (currentColumn >= TERMINAL_COLUMNS) {
-                currentColumn = 0;
-                ++currentRow;
-                if (currentRow >= TERMINAL_ROWS) {
-                    currentText = currentText.delete(0, TERMINAL_COLUMNS + 1);
-                    currentRow = TERMINAL_ROWS - 1;
-                    for (int j = 0; j < TERMINAL_COLUMNS; ++j) {
-                        currentText.append(" ");
-                    }
-                    currentText.append("\n");
+            anyDirty = false;
+            for (int i = 0; i < ROWS; ++i) {
+                if (dirty[i]) {
+                    dirty[i] = false;
+                    first = Math.min(first, i);
+                    last = i;
                 }
             }
-        } else {
-            switch (s) {
-                case 7:
-                    Toolkit.getDefaultToolkit().beep();
-                    break;
-                case 8:     // CTRL-H (BS) (Cursor Left)
-                    if (currentColumn > 0) {
-                        --currentColumn;
-                    }
-                    break;
-                case 9:     // CTRL-I (TAB)
-                    // not sure it supports this
-                    break;
-                case 10:    // CTRL-J (LF) (Cursor Down)
-                    ++currentRow;
-                    if (currentRow >= TERMINAL_ROWS) {
-                        currentText = currentText.delete(0, TERMINAL_COLUMNS + 1);
-                        currentRow = TERMINAL_ROWS - 1;
-                        for (int j = 0; j < TERMINAL_COLUMNS; ++j) {
-                            currentText.append(" ");
-                        }
-                        currentText.append("\n");
-                    }
-                    break;
-                case 11:    // CTRL-J (Cursor Up)
-                    if (currentRow > 0) {
-                        --currentRow;
-                    }
-                    break;
-                case 12:    // CTRL-K (Cursor Right)
-                    ++currentColumn;
-                    if (currentColumn >= TERMINAL_COLUMNS) {
-                        currentColumn = 0;
-                        ++currentRow;
-                        if (currentRow >= TERMINAL_ROWS) {
-                            currentText = currentText.delete(0, TERMINAL_COLUMNS + 1);
-                            currentRow = TERMINAL_ROWS - 1;
-                            for (int j = 0; j < TERMINAL_COLUMNS; ++j) {
-                                currentText.append(" ");
-                            }
-                            currentText.append("\n");
-                        }
-                    }
-                    break;
-                case 13:    // CTRL-M (CR)
-                    currentColumn = 0;
-                    break;
-                case 26:    // CTRL-Z (Clear Screen)
-                    clearScreen();
-                    home();
-                    break;
-                case 27:    // CTRL-[ (ESC) (Cursor Position)
-                    escapeSequence = 1;
-                    break;
-                case 30:    // CTRL-^ (Home)
-                    home();
-                    break;
-                default:
-                    break;
+        }
+        panel.repaint(0, MARGIN + (first * lineHeight), panel.getWidth(),
+                (last - first + 1) * lineHeight);
+    }
+
+    private class ScreenPanel extends JComponent {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(Color.WHITE);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g.setFont(font);
+            int first = Math.max(0, (clip.y - MARGIN) / lineHeight);
+            int last = Math.min(ROWS - 1,
+                    (clip.y + clip.height - MARGIN) / lineHeight);
+            synchronized (TerminalGUI.this) {
+                g.setColor(Color.BLACK);
+                for (int i = first; i <= last; ++i) {
+                    g.drawChars(screen[i], 0, COLUMNS, MARGIN,
+                            MARGIN + (i * lineHeight) + ascent);
+                }
+                if ((cursorRow >= first) && (cursorRow <= last)) {
+                    int x = MARGIN + (cursorColumn * charWidth);
+                    int y = MARGIN + (cursorRow * lineHeight);
+                    g.fillRect(x, y, charWidth, lineHeight);
+                    g.setColor(Color.WHITE);
+                    g.drawChars(screen[cursorRow], cursorColumn, 1, x, y + ascent);
+                }
             }
         }
-        updateText();
-        positionCaret();
+
     }
 
     private class KeyListener extends KeyAdapter {
@@ -226,8 +171,9 @@ public class TerminalGUI implements SerialTerminal {
 
         @Override
         public void actionPerformed(ActionEvent e) {
+            Qbus.instance().flush();
             System.exit(0);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019  Eric A. Edwards
+ *
+ * This file is part of TerakEMU.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * TerminalScreen.java - The screen of a terminal, without a display.
+ *
+ * What the console terminal would be showing, kept as a grid of
+ * characters, for running with no window and for anything that wants
+ * to look at the screen.  It understands the same controls as
+ * TerminalGUI: ESC = row col to position the cursor (each plus 32),
+ * ^Z to clear, ^^ for home, BS, ^K up, ^L right, CR, LF and BEL.
+ */
+package io.github.ericedwards.terakemu;
+
+import java.util.Arrays;
+
+public class TerminalScreen implements SerialTerminal {
+
+    public static final int COLUMNS = 80;
+    public static final int ROWS = 24;
+
+    protected final char[][] screen = new char[ROWS][COLUMNS];
+    private int row;
+    private int column;
+    private int escapeSequence;
+    private int escapeRow;
+    private long bells;
+
+    public TerminalScreen() {
+        for (int i = 0; i < ROWS; ++i) {
+            Arrays.fill(screen[i], ' ');
+        }
+    }
+
+    @Override
+    public synchronized void sendToTerminal(int s) {
+        if (escapeSequence > 0) {
+            escape(s);
+        } else if ((s >= 32) && (s < 127)) {
+            screen[row][column] = (char) s;
+            changed(row);
+            right();
+        } else {
+            switch (s) {
+                case 7:
+                    ++bells;
+                    bell();
+                    break;
+                case 8:     // CTRL-H (BS) (Cursor Left)
+                    if (column > 0) {
+                        --column;
+                    }
+                    break;
+                case 10:    // CTRL-J (LF) (Cursor Down)
+                    lineFeed();
+                    break;
+                case 11:    // CTRL-K (Cursor Up)
+                    if (row > 0) {
+                        --row;
+                    }
+                    break;
+                case 12:    // CTRL-L (Cursor Right)
+                    right();
+                    break;
+                case 13:    // CTRL-M (CR)
+                    column = 0;
+                    break;
+                case 26:    // CTRL-Z (Clear Screen)
+                    clearScreen();
+                    row = 0;
+                    column = 0;
+                    break;
+                case 27:    // CTRL-[ (ESC) (Cursor Position)
+                    escapeSequence = 1;
+                    break;
+                case 30:    // CTRL-^ (Home)
+                    row = 0;
+                    column = 0;
+                    break;
+                default:
+                    break;
+            }
+        }
+        moved();
+    }
+
+    @Override
+    public synchronized void sendToTerminal(byte[] b, int offset, int length) {
+        for (int i = 0; i < length; ++i) {
+            sendToTerminal(b[offset + i] & 0377);
+        }
+    }
+
+    private void escape(int s) {
+        switch (escapeSequence) {
+            case 1:
+                escapeSequence = (s == '=') ? 2 : 0;
+                break;
+            case 2:
+                escapeRow = s - 32;
+                escapeSequence = 3;
+                break;
+            default:
+                row = Math.max(0, Math.min(ROWS - 1, escapeRow));
+                column = Math.max(0, Math.min(COLUMNS - 1, s - 32));
+                escapeSequence = 0;
+                break;
+        }
+    }
+
+    private void right() {
+        ++column;
+        if (column >= COLUMNS) {
+            column = 0;
+            lineFeed();
+        }
+    }
+
+    // lineFeed() - Down a row, scrolling at the bottom by moving the
+    // rows up, the top one becoming the new bottom.
+    private void lineFeed() {
+        ++row;
+        if (row >= ROWS) {
+            row = ROWS - 1;
+            char[] top = screen[0];
+            System.arraycopy(screen, 1, screen, 0, ROWS - 1);
+            Arrays.fill(top, ' ');
+            screen[ROWS - 1] = top;
+            scrolled();
+        }
+    }
+
+    private void clearScreen() {
+        for (int i = 0; i < ROWS; ++i) {
+            Arrays.fill(screen[i], ' ');
+        }
+        scrolled();
+    }
+
+    // Hooks for a display: a row's characters changed, every row did, the
+    // cursor may have moved, the bell rang.  They're called holding the
+    // screen's lock.
+    protected void changed(int row) {
+    }
+
+    protected void scrolled() {
+    }
+
+    protected void moved() {
+    }
+
+    protected void bell() {
+    }
+
+    public synchronized String getRow(int r) {
+        return new String(screen[r]);
+    }
+
+    // getText() - The whole screen, a line per row, trailing spaces
+    // trimmed.
+    public synchronized String getText() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < ROWS; ++i) {
+            int end = COLUMNS;
+            while ((end > 0) && (screen[i][end - 1] == ' ')) {
+                --end;
+            }
+            s.append(screen[i], 0, end).append('\n');
+        }
+        return s.toString();
+    }
+
+    public synchronized int getRow() {
+        return row;
+    }
+
+    public synchronized int getColumn() {
+        return column;
+    }
+
+    public synchronized long getBells() {
+        return bells;
+    }
+
+}